@@ -0,0 +1,55 @@
+package ru.yandex.practicum.filmorate.config;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.support.NoOpCache;
+import org.springframework.cache.support.SimpleCacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+// Кэши хранилищ. Для каждого кэша в filmorate.cache.<имя>.* задаются enabled, maximum-size и expire-after-write;
+// выключенный кэш заменяется на NoOpCache, и хранилище ходит в базу как раньше.
+@Configuration
+@EnableCaching
+@Slf4j
+public class CacheConfig {
+    public static final String FILMS = "films";
+    public static final String USERS = "users";
+    public static final String GENRES = "genres";
+    public static final String MPA = "mpa";
+    public static final String DIRECTORS = "directors";
+    public static final String REVIEWS = "reviews"; // первая страница отзывов фильма
+
+    private static final List<String> CACHE_NAMES = List.of(FILMS, USERS, GENRES, MPA, DIRECTORS, REVIEWS);
+
+    @Bean
+    public CacheManager cacheManager(Environment environment) {
+        List<Cache> caches = new ArrayList<>();
+        for (String name : CACHE_NAMES) {
+            String prefix = "filmorate.cache." + name + ".";
+            if (!environment.getProperty(prefix + "enabled", Boolean.class, true)) {
+                log.info("Кэш {} выключен.", name);
+                caches.add(new NoOpCache(name));
+                continue;
+            }
+            Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                    .maximumSize(environment.getProperty(prefix + "maximum-size", Long.class, 10_000L))
+                    .expireAfterWrite(environment.getProperty(prefix + "expire-after-write", Duration.class,
+                            Duration.ofMinutes(10)))
+                    .recordStats(); // попадания и промахи публикуются в метриках cache.gets
+            caches.add(new CaffeineCache(name, builder.build()));
+        }
+        SimpleCacheManager cacheManager = new SimpleCacheManager();
+        cacheManager.setCaches(caches);
+        return cacheManager;
+    }
+}
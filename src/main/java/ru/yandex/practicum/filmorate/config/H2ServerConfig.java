@@ -0,0 +1,29 @@
+package ru.yandex.practicum.filmorate.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.h2.tools.Server;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.sql.SQLException;
+
+// TCP-сервер H2 внутри приложения: к файловой базе можно подключиться снаружи
+// (jdbc:h2:tcp://host:port/./db/filmorate), пока приложение держит её открытой.
+@Configuration
+@ConditionalOnProperty(name = "filmorate.h2.tcp-server.enabled", havingValue = "true")
+@Slf4j
+public class H2ServerConfig {
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public Server h2TcpServer(@Value("${filmorate.h2.tcp-server.port:9092}") int port,
+                              @Value("${filmorate.h2.tcp-server.allow-others:false}") boolean allowOthers)
+            throws SQLException {
+        log.info("Запускаем TCP-сервер H2 на порту {}.", port);
+        if (allowOthers) {
+            return Server.createTcpServer("-tcp", "-tcpPort", String.valueOf(port), "-tcpAllowOthers", "-ifExists");
+        }
+        return Server.createTcpServer("-tcp", "-tcpPort", String.valueOf(port), "-ifExists");
+    }
+}
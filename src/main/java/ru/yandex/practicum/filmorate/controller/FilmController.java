@@ -1,30 +1,76 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.yandex.practicum.filmorate.exception.IncorrectParameterException;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.LikeBatchResult;
+import ru.yandex.practicum.filmorate.model.LikeOperation;
+import ru.yandex.practicum.filmorate.model.LikesView;
+import ru.yandex.practicum.filmorate.model.Suggestion;
 import ru.yandex.practicum.filmorate.service.FilmService;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 
 @Slf4j
 @RestController
 @RequestMapping("/films")
 public class FilmController {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
     private final FilmService filmService;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public FilmController(FilmService filmService) {
+    public FilmController(FilmService filmService, ObjectMapper objectMapper) {
         this.filmService = filmService;
+        this.objectMapper = objectMapper;
     }
 
     @GetMapping
-    public Collection<Film> findAll() {
+    public Collection<Film> findAll(@RequestParam(required = false, defaultValue = "ids") String likes,
+                                    @RequestParam(required = false) Long userId,
+                                    @RequestParam(required = false) Integer limit,
+                                    @RequestParam(required = false) Long after) {
+        if (limit != null || after != null) {
+            log.info("Получен GET-запрос к эндпоинту '/films' на получение страницы фильмов после ID = {}.", after);
+            return filmService.findPage(after, limit == null ? DEFAULT_PAGE_SIZE : limit, parseLikesView(likes),
+                    userId);
+        }
         log.info("Получен GET-запрос к эндпоинту '/films' на получение списка всех фильмов.");
-        return filmService.findAll();
+        return filmService.findAll(parseLikesView(likes), userId);
+    }
+
+    @GetMapping(params = "stream=true")
+    public ResponseEntity<StreamingResponseBody> streamAll(
+            @RequestParam(required = false, defaultValue = "ids") String likes,
+            @RequestParam(required = false) Long userId) {
+        log.info("Получен GET-запрос к эндпоинту '/films' на потоковую выдачу всех фильмов.");
+        LikesView likesView = parseLikesView(likes);
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                generator.writeStartArray();
+                filmService.streamAll(likesView, userId, film -> {
+                    try {
+                        objectMapper.writeValue(generator, film);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
     }
 
     @PostMapping
@@ -59,13 +105,27 @@ public class FilmController {
         filmService.removeLike(id, userId);
     }
 
+    @PostMapping("/likes:batch")
+    public LikeBatchResult applyLikes(@RequestBody List<LikeOperation> likes) {
+        log.info("Получен POST-запрос к эндпоинту '/films/likes:batch' на применение {} лайков.", likes.size());
+        return filmService.applyLikes(likes);
+    }
+
     // убрал аналогичный метод, оставил обновленный
     @GetMapping("popular")
     public List<Film> getTopNPopularFilms(@RequestParam(required = false, defaultValue = "10") Integer count,
                                           @RequestParam(required = false) Integer genreId,
-                                          @RequestParam(required = false) Integer year) {
+                                          @RequestParam(required = false) Integer year,
+                                          @RequestParam(required = false, defaultValue = "ids") String likes,
+                                          @RequestParam(required = false) Long userId) {
         log.info("Был вызван GET метод getPopularFilms");
-        return filmService.getTopNPopularFilms(count, genreId, year);
+        return filmService.getTopNPopularFilms(count, genreId, year, parseLikesView(likes), userId);
+    }
+
+    @PostMapping("popular/rebuild")
+    public void rebuildPopularFilms() {
+        log.info("Получен POST-запрос к эндпоинту '/films/popular/rebuild' на перестроение рейтинга фильмов.");
+        filmService.rebuildPopularFilms();
     }
 
     @DeleteMapping("/{id}")
@@ -81,8 +141,17 @@ public class FilmController {
 
     @GetMapping("/search")
     public List<Film> searchFilms(@RequestParam String query,
-                                  @RequestParam @NotNull List<String> by) {
-        return filmService.searchFilms(query, by);
+                                  @RequestParam @NotNull List<String> by,
+                                  @RequestParam(required = false, defaultValue = "ids") String likes,
+                                  @RequestParam(required = false) Long userId) {
+        return filmService.searchFilms(query, by, parseLikesView(likes), userId);
+    }
+
+    @GetMapping("/suggest")
+    public List<Suggestion> suggest(@RequestParam String prefix,
+                                    @RequestParam(required = false, defaultValue = "10") Integer count) {
+        log.debug("Получен GET-запрос к эндпоинту '/films/suggest' по префиксу {}.", prefix);
+        return filmService.suggest(prefix, count);
     }
 
     @GetMapping("/common")
@@ -91,6 +160,14 @@ public class FilmController {
                 "списка общих фильмов у пользователя с ID = {} с пользователем с ID = {}.", userId, friendId);
         return filmService.getCommonFilms(userId, friendId);
     }
-}
-
 
+    // likes=ids - список ID лайкнувших пользователей, likes=count - только likesCount (и likedByMe при userId)
+    private LikesView parseLikesView(String likes) {
+        if ("ids".equalsIgnoreCase(likes)) {
+            return LikesView.IDS;
+        } else if ("count".equalsIgnoreCase(likes)) {
+            return LikesView.COUNT;
+        }
+        throw new IncorrectParameterException("likes");
+    }
+}
@@ -4,10 +4,13 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 import ru.yandex.practicum.filmorate.model.Review;
+import ru.yandex.practicum.filmorate.model.ReviewVote;
+import ru.yandex.practicum.filmorate.model.ReviewVoteBatchResult;
 import ru.yandex.practicum.filmorate.service.ReviewService;
 
 import javax.validation.Valid;
 import java.util.Collection;
+import java.util.List;
 
 @Slf4j
 @RestController
@@ -38,17 +41,26 @@ public class ReviewController {
         reviewService.deleteReview(id);
     }
 
+    @PostMapping("/votes:batch")
+    public ReviewVoteBatchResult applyVotes(@RequestBody List<ReviewVote> votes) {
+        log.info("Получен POST-запрос к эндпоинту '/reviews/votes:batch' на применение {} оценок.", votes.size());
+        return reviewService.applyVotes(votes);
+    }
+
     @GetMapping
     public Collection<Review> getReviews(
             @RequestParam(value = "filmId", required = false) Long filmId,
-            @RequestParam(value = "count", required = false, defaultValue = "10") Long count) {
+            @RequestParam(value = "count", required = false, defaultValue = "10") Long count,
+            @RequestParam(required = false) Long afterUseful,
+            @RequestParam(required = false) Long afterId) {
         if (filmId == null) {
-            log.info("Получен GET-запрос к эндпоинту '/reviews' на получение {} отзывов.", count.toString());
-            return reviewService.findTopNReviews(count);
+            log.info("Получен GET-запрос к эндпоинту '/reviews' на получение {} отзывов после отзыва с ID = {}.",
+                    count, afterId);
+        } else {
+            log.info("Получен GET-запрос к эндпоинту '/reviews' на получение {} отзывов для фильма c id = {} " +
+                    "после отзыва с ID = {}.", count, filmId, afterId);
         }
-        log.info("Получен GET-запрос к эндпоинту '/reviews' на получение {} отзывов для фильма c id = {}.",
-                count.toString(), filmId);
-        return reviewService.findTopNReviewsByFilmId(filmId, count);
+        return reviewService.findReviews(filmId, afterUseful, afterId, count);
     }
 
     @GetMapping("/{id}")
@@ -1,8 +1,14 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.yandex.practicum.filmorate.model.Feed;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.User;
@@ -10,6 +16,9 @@ import ru.yandex.practicum.filmorate.service.FilmService;
 import ru.yandex.practicum.filmorate.service.UserService;
 
 import javax.validation.Valid;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.util.Collection;
 import java.util.List;
 
@@ -17,21 +26,50 @@ import java.util.List;
 @RestController
 @RequestMapping("/users")
 public class UserController {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
     private final UserService userService;
     private final FilmService filmService;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public UserController(UserService userService, FilmService filmService) {
+    public UserController(UserService userService, FilmService filmService, ObjectMapper objectMapper) {
         this.userService = userService;
         this.filmService = filmService;
+        this.objectMapper = objectMapper;
     }
 
     @GetMapping
-    public Collection<User> findAll() {
+    public Collection<User> findAll(@RequestParam(required = false) Integer limit,
+                                    @RequestParam(required = false) Long after) {
+        if (limit != null || after != null) {
+            log.info("Получен GET-запрос к эндпоинту '/users' на получение страницы пользователей после ID = {}.",
+                    after);
+            return userService.findPage(after, limit == null ? DEFAULT_PAGE_SIZE : limit);
+        }
         log.info("Получен GET-запрос к эндпоинту '/users' на получение списка всех пользователей.");
         return userService.findAll();
     }
 
+    @GetMapping(params = "stream=true")
+    public ResponseEntity<StreamingResponseBody> streamAll() {
+        log.info("Получен GET-запрос к эндпоинту '/users' на потоковую выдачу всех пользователей.");
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                generator.writeStartArray();
+                userService.streamAll(user -> {
+                    try {
+                        objectMapper.writeValue(generator, user);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
     @PostMapping
     public User createUser(@Valid @RequestBody User user) {
         log.info("Получен POST-запрос к эндпоинту '/users' на добавление пользователя: {}.", user);
@@ -85,10 +123,36 @@ public class UserController {
     }
 
     @GetMapping("/{id}/feed")
-    public List<Feed> getFeedByUserId(@PathVariable Long id) {
+    public List<Feed> getFeedByUserId(@PathVariable Long id,
+                                      @RequestParam(required = false) Long after,
+                                      @RequestParam(required = false) Long since,
+                                      @RequestParam(required = false) Long before,
+                                      @RequestParam(required = false) Integer limit) {
         log.info("Получен GET-запрос к эндпоинту '/users/{id}/feed' на получение " +
                 "ленты событий для пользователя с ID = {}.", id);
-        return userService.getFeedByUserId(id);
+        // since и before - время в миллисекундах, как timestamp у событий
+        return userService.getFeedByUserId(id, after, since == null ? null : Instant.ofEpochMilli(since),
+                before == null ? null : Instant.ofEpochMilli(before), limit);
+    }
+
+    // новые события ленты по мере записи; при переподключении браузер сам передаёт Last-Event-ID
+    @GetMapping(value = "/{id}/feed/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamFeed(@PathVariable Long id,
+                                 @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId,
+                                 @RequestParam(required = false) Long after) {
+        log.info("Получен GET-запрос к эндпоинту '/users/{id}/feed/stream' на подписку " +
+                "на ленту событий пользователя с ID = {}.", id);
+        return userService.subscribeToFeed(id, lastEventId != null ? lastEventId : after);
+    }
+
+    // события друзей от новых к старым, следующая страница - before = eventId последнего события
+    @GetMapping("/{id}/feed/friends")
+    public List<Feed> getFriendsFeed(@PathVariable Long id,
+                                     @RequestParam(required = false) Long before,
+                                     @RequestParam(required = false, defaultValue = "20") Integer limit) {
+        log.info("Получен GET-запрос к эндпоинту '/users/{id}/feed/friends' на получение " +
+                "ленты событий друзей пользователя с ID = {}.", id);
+        return userService.getFriendsFeed(id, before, limit);
     }
 
     @GetMapping("/{id}/recommendations")
@@ -1,5 +1,6 @@
 package ru.yandex.practicum.filmorate.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
@@ -26,7 +27,12 @@ public class Film {
 
     @Positive(message = "Продолжительность фильма должна быть положительной")
     private int duration;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     private Set<Long> likes = new HashSet<>();
+    private long likesCount;
+    private long reviewsUseful;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Boolean likedByMe;
     private Mpa mpa;
     private Set<Genre> genres = new HashSet<>();
     private Set<Director> directors = new HashSet<>();
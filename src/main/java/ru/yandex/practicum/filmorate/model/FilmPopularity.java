@@ -0,0 +1,16 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.LocalDate;
+import java.util.Set;
+
+@Data
+@AllArgsConstructor
+public class FilmPopularity {
+    private Long filmId;
+    private long likesCount;
+    private LocalDate releaseDate;
+    private Set<Integer> genreIds;
+}
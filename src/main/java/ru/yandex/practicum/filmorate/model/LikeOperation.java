@@ -0,0 +1,22 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.NotNull;
+
+// одна запись пакетной загрузки лайков: operation = ADD ставит лайк, REMOVE снимает
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LikeOperation {
+    @NotNull(message = "Отсутствует ID фильма")
+    private Long filmId;
+
+    @NotNull(message = "Отсутствует ID пользователя")
+    private Long userId;
+
+    @NotNull(message = "Отсутствует вид операции")
+    private Operation operation;
+}
@@ -0,0 +1,6 @@
+package ru.yandex.practicum.filmorate.model;
+
+// как отдавать лайки фильма: списком ID пользователей или только количеством
+public enum LikesView {
+    IDS, COUNT
+}
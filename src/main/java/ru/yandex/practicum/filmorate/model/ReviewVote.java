@@ -0,0 +1,22 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.NotNull;
+
+// одна оценка пакетной загрузки: rating = 1 - лайк, -1 - дизлайк, 0 - снять оценку
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReviewVote {
+    @NotNull(message = "Отсутствует ID отзыва")
+    private Long reviewId;
+
+    @NotNull(message = "Отсутствует ID пользователя")
+    private Long userId;
+
+    @NotNull(message = "Отсутствует оценка")
+    private Integer rating;
+}
@@ -0,0 +1,14 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+// вариант автодополнения в строке поиска: название фильма или имя режиссёра
+@Data
+@AllArgsConstructor
+public class Suggestion {
+    private String text;
+    private String type; // film или director
+    private Long id;
+    private long likesCount;
+}
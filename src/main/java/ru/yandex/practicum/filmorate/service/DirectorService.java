@@ -2,25 +2,39 @@ package ru.yandex.practicum.filmorate.service;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.*;
 import ru.yandex.practicum.filmorate.model.Director;
+import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.storage.director.DirectorStorage;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 @Slf4j
 @Service
 public class DirectorService {
     private final DirectorStorage directorStorage;
+    private final FilmStorage filmStorage;
+    private final FilmSearchIndex searchIndex;
+    private final FilmSuggestIndex suggestIndex;
 
     @Autowired
-    public DirectorService(DirectorStorage directorStorage) {
+    public DirectorService(DirectorStorage directorStorage, @Qualifier("filmDbStorage") FilmStorage filmStorage,
+                           FilmSearchIndex searchIndex, FilmSuggestIndex suggestIndex) {
         this.directorStorage = directorStorage;
+        this.filmStorage = filmStorage;
+        this.searchIndex = searchIndex;
+        this.suggestIndex = suggestIndex;
     }
 
     public Director createDirector(Director director) {
         director = directorStorage.createDirector(director);
+        searchIndex.putDirector(director);
+        suggestIndex.putDirector(director);
         log.info("Добавлен режиссёр с: {}", director.getName());
         return director;
     }
@@ -31,14 +45,21 @@ public class DirectorService {
         if (director == null) {
             throw new DirectorNotFoundException("Режиссёр с ID = " + id + " не найден.");
         }
+        filmStorage.refreshFilmView(getFilmIds(id));
+        searchIndex.putDirector(director);
+        suggestIndex.putDirector(director);
         log.info("Обновлен режиссёр c id = {}", id);
         return director;
     }
 
     public void deleteDirector(Integer id) {
+        List<Long> filmIds = getFilmIds(id);
         if (!directorStorage.deleteDirector(id)) {
             throw new DirectorNotFoundException("Режиссёр с ID = " + id + " не найден.");
         }
+        filmStorage.refreshFilmView(filmIds);
+        searchIndex.removeDirector(id);
+        suggestIndex.removeDirector(id);
         log.info("Удалён режиссёр c id = {} ", id);
     }
 
@@ -53,4 +74,12 @@ public class DirectorService {
         }
         return director;
     }
+
+    private List<Long> getFilmIds(Integer directorId) {
+        List<Long> filmIds = new ArrayList<>();
+        for (Film film : filmStorage.getFilmsByDirector(directorId)) {
+            filmIds.add(film.getId());
+        }
+        return filmIds;
+    }
 }
@@ -0,0 +1,41 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.storage.feed.FeedStorage;
+
+import java.time.Duration;
+import java.time.Instant;
+
+// Переносит события старше срока хранения из FEED в FEED_ARCHIVE, чтобы рабочая таблица и её индексы не росли.
+@Component
+@Slf4j
+public class FeedRetentionJob {
+    private final FeedStorage feedStorage;
+    private final int retentionDays;
+
+    @Autowired
+    public FeedRetentionJob(@Qualifier("bufferedFeedStorage") FeedStorage feedStorage,
+                            @Value("${filmorate.feed.retention.days:365}") int retentionDays) {
+        this.feedStorage = feedStorage;
+        this.retentionDays = retentionDays;
+    }
+
+    @Scheduled(cron = "${filmorate.feed.retention.cron:0 30 3 * * *}")
+    public void archiveOldEvents() {
+        if (retentionDays <= 0) {
+            return;
+        }
+        archiveBefore(Instant.now().minus(Duration.ofDays(retentionDays)));
+    }
+
+    public int archiveBefore(Instant cutoff) {
+        int archived = feedStorage.archiveFeedBefore(cutoff);
+        log.info("В архив ленты перенесено {} событий старше {}.", archived, cutoff);
+        return archived;
+    }
+}
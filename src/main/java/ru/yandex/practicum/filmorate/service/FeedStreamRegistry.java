@@ -0,0 +1,179 @@
+package ru.yandex.practicum.filmorate.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.yandex.practicum.filmorate.model.Feed;
+import ru.yandex.practicum.filmorate.storage.feed.FeedRecordedEvent;
+import ru.yandex.practicum.filmorate.storage.feed.FeedStorage;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Подписчики на ленту событий пользователя (SSE). Открытое соединение не занимает поток сервера,
+// события рассылаются из небольшого пула: все события одного пользователя - через один и тот же поток,
+// чтобы сохранялся порядок. При переподключении с Last-Event-ID сначала досылаются пропущенные события.
+@Component
+@Slf4j
+public class FeedStreamRegistry {
+    private final FeedStorage feedStorage;
+    private final long timeoutMs;
+    private final int replayLimit;
+    private final Map<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final ExecutorService[] dispatchers;
+
+    @Autowired
+    public FeedStreamRegistry(@Qualifier("bufferedFeedStorage") FeedStorage feedStorage,
+                              MeterRegistry meterRegistry,
+                              @Value("${filmorate.feed.stream.timeout-ms:1800000}") long timeoutMs,
+                              @Value("${filmorate.feed.stream.replay-limit:1000}") int replayLimit,
+                              @Value("${filmorate.feed.stream.dispatch-threads:4}") int dispatchThreads) {
+        this.feedStorage = feedStorage;
+        this.timeoutMs = timeoutMs;
+        this.replayLimit = replayLimit;
+        this.dispatchers = new ExecutorService[dispatchThreads];
+        for (int i = 0; i < dispatchThreads; i++) {
+            String name = "feed-stream-" + i;
+            dispatchers[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        Gauge.builder("filmorate.feed.stream.subscribers", subscriberCount, AtomicInteger::get)
+                .description("Открытые подписки на ленту событий")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (ExecutorService dispatcher : dispatchers) {
+            dispatcher.shutdownNow();
+        }
+        subscribers.values().forEach(set -> set.forEach(subscriber -> subscriber.emitter.complete()));
+    }
+
+    public SseEmitter subscribe(Long userId, Long lastEventId) {
+        return subscribe(userId, lastEventId, new SseEmitter(timeoutMs));
+    }
+
+    public SseEmitter subscribe(Long userId, Long lastEventId, SseEmitter emitter) {
+        Subscriber subscriber = new Subscriber(emitter, lastEventId == null ? 0 : lastEventId);
+        emitter.onCompletion(() -> unsubscribe(userId, subscriber));
+        emitter.onTimeout(() -> unsubscribe(userId, subscriber));
+        emitter.onError(e -> unsubscribe(userId, subscriber));
+        // подписываемся до чтения пропущенного, чтобы не потерять события, записанные между ними
+        subscribers.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        subscriberCount.incrementAndGet();
+        List<Feed> missed = lastEventId == null ? List.of()
+                : feedStorage.getFeedByUserId(userId, lastEventId, null, null, replayLimit);
+        subscriber.finishReplay(missed);
+        return emitter;
+    }
+
+    @EventListener
+    public void onFeedRecorded(FeedRecordedEvent event) {
+        for (Feed feed : event.getFeeds()) {
+            Set<Subscriber> userSubscribers = subscribers.get(feed.getUserId());
+            if (userSubscribers == null || userSubscribers.isEmpty()) {
+                continue;
+            }
+            dispatcherFor(feed.getUserId()).execute(() -> {
+                for (Subscriber subscriber : userSubscribers) {
+                    subscriber.offer(feed);
+                }
+            });
+        }
+    }
+
+    // комментарий раз в heartbeat-ms не даёт прокси закрыть соединение и находит отвалившихся клиентов
+    @Scheduled(fixedDelayString = "${filmorate.feed.stream.heartbeat-ms:15000}")
+    public void heartbeat() {
+        subscribers.forEach((userId, userSubscribers) -> dispatcherFor(userId).execute(() -> {
+            for (Subscriber subscriber : userSubscribers) {
+                subscriber.heartbeat();
+            }
+        }));
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    private ExecutorService dispatcherFor(Long userId) {
+        return dispatchers[(int) Math.floorMod(userId, (long) dispatchers.length)];
+    }
+
+    private void unsubscribe(Long userId, Subscriber subscriber) {
+        subscribers.computeIfPresent(userId, (id, set) -> {
+            if (set.remove(subscriber)) {
+                subscriberCount.decrementAndGet();
+            }
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static final class Subscriber {
+        private final SseEmitter emitter;
+        private long lastSentId;
+        private boolean replaying = true;
+        private final List<Feed> pending = new ArrayList<>(); // новые события, пришедшие во время досылки
+
+        private Subscriber(SseEmitter emitter, long lastSentId) {
+            this.emitter = emitter;
+            this.lastSentId = lastSentId;
+        }
+
+        private synchronized void finishReplay(List<Feed> missed) {
+            missed.forEach(this::send);
+            pending.forEach(this::send);
+            pending.clear();
+            replaying = false;
+        }
+
+        private synchronized void offer(Feed feed) {
+            if (replaying) {
+                pending.add(feed);
+            } else {
+                send(feed);
+            }
+        }
+
+        private synchronized void heartbeat() {
+            try {
+                emitter.send(SseEmitter.event().comment("heartbeat"));
+            } catch (IOException | IllegalStateException e) {
+                emitter.completeWithError(e);
+            }
+        }
+
+        private void send(Feed feed) {
+            if (feed.getEventId() <= lastSentId) {
+                return;
+            }
+            try {
+                emitter.send(SseEmitter.event().id(String.valueOf(feed.getEventId())).name("feed").data(feed));
+                lastSentId = feed.getEventId();
+            } catch (IOException | IllegalStateException e) {
+                log.debug("Подписчик ленты отключился: {}", e.getMessage());
+                emitter.completeWithError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Индекс лайков для рекомендаций: пользователь -> фильмы и обратный фильм -> пользователи в виде битмапов.
+// Похожий пользователь ищется только среди тех, кто лайкал те же фильмы, без чтения всей таблицы лайков.
+// Top-K похожих пользователей считается заранее (SimilarUsersRefreshJob) только для "грязных" пользователей,
+// чьи лайки или лайки их соседей по фильмам изменились с прошлого пересчёта.
+// Рекомендуются фильмы всех K соседей: вес фильма - сумма общих лайков с соседями, которые его лайкали.
+@Component
+@Slf4j
+public class FilmRecommendationEngine {
+    private static final Neighbours NO_USERS = new Neighbours(new long[0], new int[0]);
+
+    private final FilmStorage filmStorage;
+    private final int similarUsersCount;
+    private final int dirtyFanOutLimit;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Roaring64Bitmap> filmsByUser = new HashMap<>();
+    private final Map<Long, Roaring64Bitmap> usersByFilm = new HashMap<>();
+    private final Map<Long, Neighbours> similarUsers = new ConcurrentHashMap<>();
+    private final Set<Long> dirtyUsers = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public FilmRecommendationEngine(@Qualifier("filmDbStorage") FilmStorage filmStorage,
+                                    @Value("${filmorate.recommendations.similar-users:10}") int similarUsersCount,
+                                    @Value("${filmorate.recommendations.dirty-fan-out-limit:1000}")
+                                    int dirtyFanOutLimit) {
+        this.filmStorage = filmStorage;
+        this.similarUsersCount = similarUsersCount;
+        this.dirtyFanOutLimit = dirtyFanOutLimit;
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        lock.writeLock().lock();
+        try {
+            filmsByUser.clear();
+            usersByFilm.clear();
+            similarUsers.clear();
+            filmStorage.forEachLike(this::add);
+            dirtyUsers.addAll(filmsByUser.keySet());
+            log.info("Индекс рекомендаций построен, пользователей с лайками: {}.", filmsByUser.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void addLike(Long userId, Long filmId) {
+        lock.writeLock().lock();
+        try {
+            add(userId, filmId);
+            markDirty(userId, filmId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeLike(Long userId, Long filmId) {
+        lock.writeLock().lock();
+        try {
+            markDirty(userId, filmId);
+            removeFrom(filmsByUser, userId, filmId);
+            removeFrom(usersByFilm, filmId, userId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFilm(Long filmId) {
+        lock.writeLock().lock();
+        try {
+            Roaring64Bitmap users = usersByFilm.remove(filmId);
+            if (users != null) {
+                users.forEach(userId -> {
+                    removeFrom(filmsByUser, userId, filmId);
+                    dirtyUsers.add(userId);
+                });
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // возвращает фильмы, которые лайкал удалённый пользователь
+    public List<Long> removeUser(Long userId) {
+        List<Long> filmIds = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            Roaring64Bitmap films = filmsByUser.remove(userId);
+            if (films != null) {
+                films.forEach(filmId -> {
+                    filmIds.add(filmId);
+                    markDirty(userId, filmId);
+                    removeFrom(usersByFilm, filmId, userId);
+                });
+            }
+            dirtyUsers.remove(userId);
+            similarUsers.remove(userId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return filmIds;
+    }
+
+    public List<Long> getLikedFilms(Long userId) {
+        List<Long> filmIds = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Roaring64Bitmap films = filmsByUser.get(userId);
+            if (films != null) {
+                films.forEach(filmIds::add);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return filmIds;
+    }
+
+    // фильмы соседей, которые наш пользователь ещё не лайкал, по убыванию веса, при равенстве - по ID
+    public List<Long> recommend(Long userId) {
+        lock.readLock().lock();
+        try {
+            Neighbours neighbours = similarUsers.get(userId);
+            if (neighbours == null || dirtyUsers.contains(userId)) {
+                // пересчёт ещё не дошёл до пользователя - считаем соседей сразу и сохраняем,
+                // пустой список тоже: он пересчитается, только когда пользователь снова станет "грязным"
+                dirtyUsers.remove(userId);
+                neighbours = findSimilarUsers(userId, similarUsersCount);
+                similarUsers.put(userId, neighbours);
+            }
+            return recommendFrom(userId, neighbours);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // пересчитывает top-K соседей для пользователей, помеченных с прошлого запуска
+    public int refreshSimilarUsers() {
+        int refreshed = 0;
+        Iterator<Long> iterator = dirtyUsers.iterator();
+        while (iterator.hasNext()) {
+            Long userId = iterator.next();
+            iterator.remove();
+            lock.readLock().lock();
+            try {
+                if (filmsByUser.containsKey(userId)) {
+                    similarUsers.put(userId, findSimilarUsers(userId, similarUsersCount));
+                } else {
+                    similarUsers.remove(userId);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            refreshed++;
+        }
+        return refreshed;
+    }
+
+    public int getDirtyUsersCount() {
+        return dirtyUsers.size();
+    }
+
+    // соседи упорядочены по числу общих лайков, при равенстве - по ID пользователя
+    private Neighbours findSimilarUsers(Long userId, int limit) {
+        Roaring64Bitmap ownFilms = filmsByUser.get(userId);
+        if (ownFilms == null || ownFilms.isEmpty() || limit <= 0) {
+            return NO_USERS;
+        }
+        final Map<Long, Integer> commonLikes = new HashMap<>();
+        ownFilms.forEach(filmId -> usersByFilm.get(filmId).forEach(otherId -> {
+            if (otherId != userId) {
+                commonLikes.merge(otherId, 1, Integer::sum);
+            }
+        }));
+        Comparator<Map.Entry<Long, Integer>> order = Map.Entry.<Long, Integer>comparingByValue().reversed()
+                .thenComparing(Map.Entry.comparingByKey());
+        PriorityQueue<Map.Entry<Long, Integer>> top = new PriorityQueue<>(order.reversed());
+        for (Map.Entry<Long, Integer> entry : commonLikes.entrySet()) {
+            top.add(entry);
+            if (top.size() > limit) {
+                top.poll(); // выбрасываем наименее похожего
+            }
+        }
+        long[] ids = new long[top.size()];
+        int[] likes = new int[top.size()];
+        for (int i = ids.length - 1; i >= 0; i--) {
+            Map.Entry<Long, Integer> entry = top.poll();
+            ids[i] = entry.getKey();
+            likes[i] = entry.getValue();
+        }
+        return new Neighbours(ids, likes);
+    }
+
+    private List<Long> recommendFrom(Long userId, Neighbours neighbours) {
+        Roaring64Bitmap ownFilms = filmsByUser.get(userId);
+        final Map<Long, Long> weights = new HashMap<>();
+        for (int i = 0; i < neighbours.ids.length; i++) {
+            Roaring64Bitmap similarFilms = filmsByUser.get(neighbours.ids[i]);
+            if (similarFilms == null) {
+                continue; // сосед удалён после пересчёта
+            }
+            long commonLikes = neighbours.commonLikes[i];
+            similarFilms.forEach(filmId -> {
+                if (ownFilms == null || !ownFilms.contains(filmId)) {
+                    weights.merge(filmId, commonLikes, Long::sum);
+                }
+            });
+        }
+        List<Long> filmIds = new ArrayList<>(weights.keySet());
+        filmIds.sort(Comparator.comparing((Long filmId) -> weights.get(filmId)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        return filmIds;
+    }
+
+    private void add(Long userId, Long filmId) {
+        filmsByUser.computeIfAbsent(userId, id -> new Roaring64Bitmap()).addLong(filmId);
+        usersByFilm.computeIfAbsent(filmId, id -> new Roaring64Bitmap()).addLong(userId);
+    }
+
+    // изменился лайк userId на фильм filmId: меняется похожесть пользователя со всеми, кто лайкал этот фильм
+    private void markDirty(Long userId, Long filmId) {
+        dirtyUsers.add(userId);
+        Roaring64Bitmap users = usersByFilm.get(filmId);
+        if (users != null && users.getLongCardinality() <= dirtyFanOutLimit) {
+            users.forEach(dirtyUsers::add);
+        }
+    }
+
+    private static void removeFrom(Map<Long, Roaring64Bitmap> index, Long key, long value) {
+        Roaring64Bitmap bitmap = index.get(key);
+        if (bitmap != null) {
+            bitmap.removeLong(value);
+            if (bitmap.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    // соседи по убыванию похожести и число общих лайков с каждым
+    private static final class Neighbours {
+        private final long[] ids;
+        private final int[] commonLikes;
+
+        private Neighbours(long[] ids, int[] commonLikes) {
+            this.ids = ids;
+            this.commonLikes = commonLikes;
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Director;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.LikesView;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+// Триграммный индекс в памяти для поиска фильмов по подстроке в названии, описании и именах режиссёров.
+// Кандидаты находятся пересечением списков фильмов по триграммам запроса, затем проверяются на вхождение подстроки,
+// поэтому результат совпадает с LIKE '%запрос%' без учёта регистра (и без различия ё/е).
+@Component
+@Slf4j
+public class FilmSearchIndex {
+    public static final String TITLE = "title";
+    public static final String DIRECTOR = "director";
+    public static final String DESCRIPTION = "description";
+
+    private final FilmStorage filmStorage;
+    private final PopularFilmsLeaderboard popularFilms;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, FilmText> films = new HashMap<>();
+    private final Map<Integer, String> directorNames = new HashMap<>();
+    private final Map<Integer, Roaring64Bitmap> filmsByDirector = new HashMap<>();
+    private final Map<String, Roaring64Bitmap> titleGrams = new HashMap<>();
+    private final Map<String, Roaring64Bitmap> descriptionGrams = new HashMap<>();
+    private final Map<String, Roaring64Bitmap> directorGrams = new HashMap<>(); // здесь в битовых картах ID режиссёров
+
+    @Autowired
+    public FilmSearchIndex(@Qualifier("filmDbStorage") FilmStorage filmStorage, PopularFilmsLeaderboard popularFilms) {
+        this.filmStorage = filmStorage;
+        this.popularFilms = popularFilms;
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        Collection<Film> allFilms = filmStorage.findAllHydrated(LikesView.COUNT, null);
+        lock.writeLock().lock();
+        try {
+            films.clear();
+            directorNames.clear();
+            filmsByDirector.clear();
+            titleGrams.clear();
+            descriptionGrams.clear();
+            directorGrams.clear();
+            for (Film film : allFilms) {
+                insertFilm(film);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Поисковый индекс фильмов построен, фильмов: {}.", allFilms.size());
+    }
+
+    // фильм должен быть загружен вместе с режиссёрами
+    public void putFilm(Film film) {
+        lock.writeLock().lock();
+        try {
+            deleteFilm(film.getId());
+            insertFilm(film);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFilm(Long filmId) {
+        lock.writeLock().lock();
+        try {
+            deleteFilm(filmId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void putDirector(Director director) {
+        lock.writeLock().lock();
+        try {
+            String old = directorNames.get(director.getId());
+            if (old != null) {
+                removeGrams(directorGrams, old, director.getId());
+            }
+            putDirectorName(director.getId(), director.getName());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeDirector(Integer directorId) {
+        lock.writeLock().lock();
+        try {
+            String old = directorNames.remove(directorId);
+            if (old != null) {
+                removeGrams(directorGrams, old, directorId);
+            }
+            Roaring64Bitmap directorFilms = filmsByDirector.remove(directorId);
+            if (directorFilms != null) {
+                directorFilms.forEach(filmId -> {
+                    FilmText film = films.get(filmId);
+                    if (film != null) {
+                        film.directorIds.remove(directorId);
+                    }
+                });
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ID найденных фильмов: сначала совпавшие по большему числу полей, затем по лайкам
+    public List<Long> search(String query, Collection<String> fields) {
+        String text = normalize(query);
+        Map<Long, Integer> matchedFields = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            if (fields.contains(TITLE)) {
+                count(matchedFields, findFilms(titleGrams, text, film -> film.title));
+            }
+            if (fields.contains(DESCRIPTION)) {
+                count(matchedFields, findFilms(descriptionGrams, text, film -> film.description));
+            }
+            if (fields.contains(DIRECTOR)) {
+                count(matchedFields, findFilmsByDirector(text));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Comparator<Long> byLikes = Comparator.comparingLong(popularFilms::getLikes);
+        if (fields.size() != 1 || !fields.contains(TITLE)) {
+            byLikes = byLikes.reversed(); // поиск только по названию всегда выдавал сначала фильмы с меньшим числом лайков
+        }
+        Comparator<Long> byMatchedFields = Comparator.comparing(matchedFields::get);
+        List<Long> ids = new ArrayList<>(matchedFields.keySet());
+        ids.sort(byMatchedFields.reversed().thenComparing(byLikes).thenComparing(Comparator.naturalOrder()));
+        return ids;
+    }
+
+    private void count(Map<Long, Integer> matchedFields, Roaring64Bitmap filmIds) {
+        filmIds.forEach(filmId -> matchedFields.merge(filmId, 1, Integer::sum));
+    }
+
+    private Roaring64Bitmap findFilms(Map<String, Roaring64Bitmap> grams, String text,
+                                      Function<FilmText, String> field) {
+        Roaring64Bitmap found = new Roaring64Bitmap();
+        Roaring64Bitmap candidates = candidates(grams, text);
+        if (candidates == null) {
+            films.forEach((id, film) -> {
+                if (field.apply(film).contains(text)) {
+                    found.addLong(id);
+                }
+            });
+        } else {
+            candidates.forEach(id -> {
+                if (field.apply(films.get(id)).contains(text)) {
+                    found.addLong(id);
+                }
+            });
+        }
+        return found;
+    }
+
+    private Roaring64Bitmap findFilmsByDirector(String text) {
+        Roaring64Bitmap found = new Roaring64Bitmap();
+        Roaring64Bitmap candidates = candidates(directorGrams, text);
+        Iterable<Integer> directorIds;
+        if (candidates == null) {
+            directorIds = directorNames.keySet();
+        } else {
+            List<Integer> ids = new ArrayList<>();
+            candidates.forEach(id -> ids.add((int) id));
+            directorIds = ids;
+        }
+        for (Integer directorId : directorIds) {
+            if (directorNames.get(directorId).contains(text)) {
+                Roaring64Bitmap directorFilms = filmsByDirector.get(directorId);
+                if (directorFilms != null) {
+                    found.or(directorFilms);
+                }
+            }
+        }
+        return found;
+    }
+
+    // null - запрос короче триграммы, проверять придётся все записи
+    private Roaring64Bitmap candidates(Map<String, Roaring64Bitmap> grams, String text) {
+        Set<String> queryGrams = trigrams(text);
+        if (queryGrams.isEmpty()) {
+            return null;
+        }
+        Roaring64Bitmap result = null;
+        for (String gram : queryGrams) {
+            Roaring64Bitmap ids = grams.get(gram);
+            if (ids == null) {
+                return new Roaring64Bitmap();
+            }
+            if (result == null) {
+                result = new Roaring64Bitmap();
+                result.or(ids);
+            } else {
+                result.and(ids);
+            }
+        }
+        return result;
+    }
+
+    private void insertFilm(Film film) {
+        FilmText text = new FilmText(normalize(film.getName()), normalize(film.getDescription()));
+        films.put(film.getId(), text);
+        addGrams(titleGrams, text.title, film.getId());
+        addGrams(descriptionGrams, text.description, film.getId());
+        for (Director director : film.getDirectors()) {
+            text.directorIds.add(director.getId());
+            filmsByDirector.computeIfAbsent(director.getId(), id -> new Roaring64Bitmap()).addLong(film.getId());
+            if (director.getName() != null && !directorNames.containsKey(director.getId())) {
+                putDirectorName(director.getId(), director.getName());
+            }
+        }
+    }
+
+    private void deleteFilm(Long filmId) {
+        FilmText text = films.remove(filmId);
+        if (text == null) {
+            return;
+        }
+        removeGrams(titleGrams, text.title, filmId);
+        removeGrams(descriptionGrams, text.description, filmId);
+        for (Integer directorId : text.directorIds) {
+            Roaring64Bitmap directorFilms = filmsByDirector.get(directorId);
+            if (directorFilms != null) {
+                directorFilms.removeLong(filmId);
+            }
+        }
+    }
+
+    private void putDirectorName(Integer directorId, String name) {
+        String text = normalize(name);
+        directorNames.put(directorId, text);
+        addGrams(directorGrams, text, directorId);
+    }
+
+    private static void addGrams(Map<String, Roaring64Bitmap> grams, String text, long id) {
+        for (String gram : trigrams(text)) {
+            grams.computeIfAbsent(gram, g -> new Roaring64Bitmap()).addLong(id);
+        }
+    }
+
+    private static void removeGrams(Map<String, Roaring64Bitmap> grams, String text, long id) {
+        for (String gram : trigrams(text)) {
+            Roaring64Bitmap ids = grams.get(gram);
+            if (ids != null) {
+                ids.removeLong(id);
+                if (ids.isEmpty()) {
+                    grams.remove(gram);
+                }
+            }
+        }
+    }
+
+    private static Set<String> trigrams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            grams.add(text.substring(i, i + 3));
+        }
+        return grams;
+    }
+
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.toLowerCase(Locale.ROOT).replace('ё', 'е');
+    }
+
+    private static final class FilmText {
+        private final String title;
+        private final String description;
+        private final Set<Integer> directorIds = new HashSet<>();
+
+        private FilmText(String title, String description) {
+            this.title = title;
+            this.description = description;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package ru.yandex.practicum.filmorate.service;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.*;
 import ru.yandex.practicum.filmorate.model.*;
@@ -12,103 +13,277 @@ import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
 import ru.yandex.practicum.filmorate.storage.genre.GenreStorage;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 
+import javax.annotation.PostConstruct;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.function.Consumer;
 
 @Service
 @Slf4j
 public class FilmService {
+    private static final String SEARCH_MODE_INDEX = "index";
+    private static final String SEARCH_MODE_FULLTEXT = "fulltext";
+
     private final FilmStorage filmStorage;
     private final UserStorage userStorage;
     private final GenreStorage genreStorage;
     private final DirectorStorage directorStorage;
     private final FeedStorage feedStorage;
+    private final PopularFilmsLeaderboard popularFilms;
+    private final FilmRecommendationEngine recommendationEngine;
+    private final FilmSearchIndex searchIndex;
+    private final FilmSuggestIndex suggestIndex;
+    private final boolean popularFromLeaderboard;
+    private final String searchMode;
+    private final Set<String> multiQueryHydrationEndpoints;
+    private final int maxLikeBatchSize;
 
     @Autowired
     public FilmService(@Qualifier("filmDbStorage") FilmStorage filmStorage,
                        @Qualifier("userDbStorage") UserStorage userStorage,
                        GenreStorage genreStorage, DirectorStorage directorStorage,
-                       @Qualifier("feedDbStorage") FeedStorage feedStorage) {
+                       @Qualifier("bufferedFeedStorage") FeedStorage feedStorage,
+                       PopularFilmsLeaderboard popularFilms,
+                       FilmRecommendationEngine recommendationEngine,
+                       FilmSearchIndex searchIndex,
+                       FilmSuggestIndex suggestIndex,
+                       @Value("${filmorate.popular-films.leaderboard.enabled:true}") boolean popularFromLeaderboard,
+                       @Value("${filmorate.films.search.mode:index}") String searchMode,
+                       @Value("${filmorate.films.multi-query-hydration-endpoints:}")
+                       Set<String> multiQueryHydrationEndpoints,
+                       @Value("${filmorate.likes.batch.max-size:10000}") int maxLikeBatchSize) {
         this.filmStorage = filmStorage;
         this.userStorage = userStorage;
         this.genreStorage = genreStorage;
         this.directorStorage = directorStorage;
         this.feedStorage = feedStorage;
+        this.popularFilms = popularFilms;
+        this.recommendationEngine = recommendationEngine;
+        this.searchIndex = searchIndex;
+        this.suggestIndex = suggestIndex;
+        this.popularFromLeaderboard = popularFromLeaderboard;
+        this.searchMode = searchMode;
+        this.multiQueryHydrationEndpoints = multiQueryHydrationEndpoints;
+        this.maxLikeBatchSize = maxLikeBatchSize;
+    }
+
+    @PostConstruct
+    public void initSearch() {
+        if (SEARCH_MODE_FULLTEXT.equals(searchMode)) {
+            filmStorage.initFullTextSearch();
+        }
     }
 
     public Collection<Film> findAll() {
-        Collection<Film> films = filmStorage.findAll();
-        updateGenreAndLikeAndDirector(films);
-        return films;
+        return findAll(LikesView.IDS, null);
+    }
+
+    public Collection<Film> findAll(LikesView likesView, Long viewerId) {
+        if (likesView == LikesView.IDS && viewerId == null && multiQueryHydrationEndpoints.contains("all")) {
+            Collection<Film> films = filmStorage.findAll();
+            updateGenreAndLikeAndDirector(films);
+            return films;
+        }
+        return filmStorage.findAllHydrated(likesView, viewerId);
+    }
+
+    // страница каталога по возрастанию ID: фильмы с ID больше afterId
+    public List<Film> findPage(Long afterId, Integer limit, LikesView likesView, Long viewerId) {
+        if (limit < 1) {
+            log.error("Размер страницы должен быть положительным.");
+            throw new IncorrectParameterException("limit");
+        }
+        return filmStorage.getHydratedFilmsPage(afterId, limit, likesView, viewerId);
+    }
+
+    public void streamAll(LikesView likesView, Long viewerId, Consumer<Film> consumer) {
+        filmStorage.streamAllHydrated(likesView, viewerId, consumer);
     }
 
     public Film createFilm(Film film) {
         checkFilmReleaseDate(film);
-        Long filmId = filmStorage.createFilm(film).getId();
-        film.setId(filmId);
-        putGenreAndDirector(film);
+        Long filmId = popularFilms.update(() -> {
+            Long id = filmStorage.createFilm(film).getId();
+            film.setId(id);
+            putGenreAndDirector(film);
+            filmStorage.refreshFilmView(List.of(id)); // строка проекции уже есть, дописываем жанры и режиссёров
+            putToLeaderboard(film);
+            return id;
+        });
         log.info("Добавили фильм: {}", film.getName());
-        return getFilmById(filmId);
+        Film created = getFilmById(filmId);
+        searchIndex.putFilm(created);
+        suggestIndex.putFilm(created);
+        return created;
 //  return film; либо у входящего фильма надо сортировать жанры по id, либо получать из базы отсортированный
     }
 
     public Film updateFilm(Film film) {
         checkFilmReleaseDate(film);
         Long filmId = film.getId();
-        film = filmStorage.updateFilm(film);
-        if (film == null) {
-            throw new FilmNotFoundException("Фильм с ID = " + filmId + " не найден.");
-        }
-        deleteGenreAndDirector(filmId);
-        putGenreAndDirector(film);
+        popularFilms.update(() -> {
+            Film stored = filmStorage.updateFilm(film);
+            if (stored == null) {
+                throw new FilmNotFoundException("Фильм с ID = " + filmId + " не найден.");
+            }
+            deleteGenreAndDirector(filmId);
+            putGenreAndDirector(stored);
+            filmStorage.refreshFilmView(List.of(filmId));
+            putToLeaderboard(stored);
+            return stored;
+        });
         log.info("Обновлен фильм c id = {}", filmId);
-        return getFilmById(filmId);
+        Film updated = getFilmById(filmId);
+        searchIndex.putFilm(updated);
+        suggestIndex.putFilm(updated);
+        return updated;
     }
 
     public void deleteFilm(Long id) {
-        if (!filmStorage.deleteFilm(id)) {
-            throw new FilmNotFoundException("Фильм с ID = " + id + " не найден.");
-        }
+        popularFilms.update(() -> {
+            if (!filmStorage.deleteFilm(id)) {
+                throw new FilmNotFoundException("Фильм с ID = " + id + " не найден.");
+            }
+            popularFilms.removeFilm(id);
+            return null;
+        });
+        recommendationEngine.removeFilm(id);
+        searchIndex.removeFilm(id);
+        suggestIndex.removeFilm(id);
         log.info("Фильм с ID={} успешно удален", id);
     }
 
     public Film getFilmById(Long id) {
-        Film film = filmStorage.getFilm(id);
+        Film film;
+        if (isMultiQueryHydration("film", LikesView.IDS, null)) {
+            List<Film> films = loadFilms("film", List.of(id), LikesView.IDS, null);
+            film = films.isEmpty() ? null : films.get(0);
+        } else {
+            film = filmStorage.getHydratedFilm(id); // кэшируется до изменения фильма, его жанров, режиссёров или лайков
+        }
         if (film == null) {
             throw new FilmNotFoundException("Фильм с ID = " + id + " не найден.");
         }
-        updateGenreAndLikeAndDirector(List.of(film));
         return film;
     }
 
     public void addLike(Long filmId, Long userId) {
-        Film film = getFilmById(filmId);
-        if (film == null) {
-            throw new FilmNotFoundException("Фильм с ID = " + filmId + " не найден.");
-        }
+        checkFilmId(filmId);
         checkUserId(userId);
         log.info("Пользователь(id = {}) хочет поставить лайк фильму c id: {} .", userId, filmId);
-        filmStorage.addLike(filmId, userId);
-        log.info("Лайк фильму {} успешно добавлен.", film.getName());
+        boolean added = popularFilms.update(() -> {
+            boolean changed = filmStorage.addLike(filmId, userId);
+            if (changed) {
+                popularFilms.changeLikes(filmId, 1);
+                suggestIndex.changeLikes(filmId, 1);
+            }
+            return changed;
+        });
+        if (added) {
+            recommendationEngine.addLike(userId, filmId);
+        }
+        log.info("Лайк фильму {} успешно добавлен.", filmId);
         feedStorage.addFeed(filmId, userId, EventType.LIKE, Operation.ADD);
     }
 
     public void removeLike(Long filmId, Long userId) {
-        Film film = getFilmById(filmId);
-        if (film == null) {
-            throw new FilmNotFoundException("Фильм с ID = " + filmId + " не найден.");
-        }
+        checkFilmId(filmId);
         checkUserId(userId);
         log.info("Пользователь(id = {}) хочет отменить лайк фильму c id: {} .", userId, filmId);
-        filmStorage.removeLike(filmId, userId);
-        log.info("Лайк фильму {} успешно удалён.", film.getName());
+        boolean removed = popularFilms.update(() -> {
+            boolean changed = filmStorage.removeLike(filmId, userId);
+            if (changed) {
+                popularFilms.changeLikes(filmId, -1);
+                suggestIndex.changeLikes(filmId, -1);
+            }
+            return changed;
+        });
+        if (removed) {
+            recommendationEngine.removeLike(userId, filmId);
+        }
+        log.info("Лайк фильму {} успешно удалён.", filmId);
         feedStorage.addFeed(filmId, userId, EventType.LIKE, Operation.REMOVE);
     }
 
+    public LikeBatchResult applyLikes(List<LikeOperation> likes) {
+        if (likes.size() > maxLikeBatchSize) {
+            log.error("В пакете больше {} лайков.", maxLikeBatchSize);
+            throw new IncorrectParameterException("likes");
+        }
+        // для пары фильм-пользователь важна только последняя операция в пакете
+        Map<List<Long>, LikeOperation> lastByPair = new LinkedHashMap<>();
+        Set<Long> filmIds = new HashSet<>();
+        Set<Long> userIds = new HashSet<>();
+        for (LikeOperation like : likes) {
+            if (like.getFilmId() == null) {
+                throw new IncorrectParameterException("filmId");
+            }
+            if (like.getUserId() == null) {
+                throw new IncorrectParameterException("userId");
+            }
+            if (like.getOperation() != Operation.ADD && like.getOperation() != Operation.REMOVE) {
+                throw new IncorrectParameterException("operation");
+            }
+            List<Long> pair = List.of(like.getFilmId(), like.getUserId());
+            lastByPair.remove(pair);
+            lastByPair.put(pair, like);
+            filmIds.add(like.getFilmId());
+            userIds.add(like.getUserId());
+        }
+        List<Long> missingFilms = filmStorage.findMissingFilms(filmIds);
+        if (!missingFilms.isEmpty()) {
+            throw new FilmNotFoundException("Фильмы с ID = " + missingFilms + " не найдены.");
+        }
+        List<Long> missingUsers = userStorage.findMissingUsers(userIds);
+        if (!missingUsers.isEmpty()) {
+            throw new UserNotFoundException("Пользователи с ID = " + missingUsers + " не найдены.");
+        }
+
+        List<LikeOperation> applied = popularFilms.update(() -> {
+            List<LikeOperation> changed = filmStorage.applyLikes(new ArrayList<>(lastByPair.values()));
+            for (LikeOperation like : changed) {
+                long delta = like.getOperation() == Operation.ADD ? 1 : -1;
+                popularFilms.changeLikes(like.getFilmId(), delta);
+                suggestIndex.changeLikes(like.getFilmId(), delta);
+            }
+            return changed;
+        });
+        List<Feed> feeds = new ArrayList<>();
+        int added = 0;
+        for (LikeOperation like : applied) {
+            if (like.getOperation() == Operation.ADD) {
+                recommendationEngine.addLike(like.getUserId(), like.getFilmId());
+                added++;
+            } else {
+                recommendationEngine.removeLike(like.getUserId(), like.getFilmId());
+            }
+            Feed feed = new Feed();
+            feed.setEntityId(like.getFilmId());
+            feed.setUserId(like.getUserId());
+            feed.setEventType(EventType.LIKE);
+            feed.setOperation(like.getOperation());
+            feeds.add(feed);
+        }
+        if (!feeds.isEmpty()) {
+            feedStorage.addFeeds(feeds);
+        }
+        return new LikeBatchResult(likes.size(), added, applied.size() - added);
+    }
+
     public List<Film> getTopNPopularFilms(Integer count, Integer genreId, Integer year) {
-        List<Film> films = new ArrayList<>(filmStorage.getTopNPopularFilms(count, genreId, year));
-        updateGenreAndLikeAndDirector(films);
-        return films;
+        return getTopNPopularFilms(count, genreId, year, LikesView.IDS, null);
+    }
+
+    public List<Film> getTopNPopularFilms(Integer count, Integer genreId, Integer year,
+                                          LikesView likesView, Long viewerId) {
+        if (popularFromLeaderboard) {
+            return loadFilms("popular", popularFilms.getTopN(count, genreId, year), likesView, viewerId);
+        }
+        return hydrate("popular", filmStorage.getTopNPopularFilms(count, genreId, year), likesView, viewerId);
+    }
+
+    public void rebuildPopularFilms() {
+        popularFilms.rebuild();
     }
 
     public List<Film> getFilmsByDirector(Integer directorId, Optional<String> sortParam) {
@@ -129,16 +304,13 @@ public class FilmService {
         } else {
             films = new ArrayList<>(filmStorage.getFilmsByDirector(directorId));
         }
-        updateGenreAndLikeAndDirector(films);
-        return films;
+        return hydrate("director", films, LikesView.IDS, null);
     }
 
     public List<Film> getCommonFilms(Long userId, Long friendId) {
         checkUserId(userId);
         checkUserId(friendId);
-        List<Film> films = new ArrayList<>(filmStorage.getCommonFilms(userId, friendId));
-        updateGenreAndLikeAndDirector(films);
-        return films;
+        return hydrate("common", filmStorage.getCommonFilms(userId, friendId), LikesView.IDS, null);
     }
 
     private void checkFilmReleaseDate(Film film) {
@@ -147,8 +319,14 @@ public class FilmService {
         }
     }
 
+    private void checkFilmId(Long id) {
+        if (id < 1 || !filmStorage.existsFilm(id)) {
+            throw new FilmNotFoundException("Фильм с ID = " + id + " не найден.");
+        }
+    }
+
     private void checkUserId(Long id) {
-        if (id < 1 || userStorage.getUser(id) == null) {
+        if (id < 1 || !userStorage.existsUser(id)) {
             throw new UserNotFoundException("Пользователь  с ID = " + id + " не найден.");
         }
     }
@@ -158,11 +336,47 @@ public class FilmService {
         directorStorage.addFilmDirectors(film);
     }
 
+    private void putToLeaderboard(Film film) {
+        Set<Integer> genreIds = new HashSet<>();
+        for (Genre genre : film.getGenres()) {
+            genreIds.add(genre.getId());
+        }
+        popularFilms.putFilm(film.getId(), film.getReleaseDate().getYear(), genreIds);
+    }
+
     private void deleteGenreAndDirector(Long filmId) {
         genreStorage.deleteGenresFromFilm(filmId);
         directorStorage.deleteDirectorsFromFilm(filmId);
     }
 
+    // загружает фильмы по ID вместе с жанрами, режиссёрами и лайками
+    private List<Film> loadFilms(String endpoint, List<Long> ids, LikesView likesView, Long viewerId) {
+        if (isMultiQueryHydration(endpoint, likesView, viewerId)) {
+            List<Film> films = filmStorage.getFilmsByIds(ids);
+            updateGenreAndLikeAndDirector(films);
+            return films;
+        }
+        return filmStorage.getHydratedFilmsByIds(ids, likesView, viewerId);
+    }
+
+    // дополняет найденные фильмы жанрами, режиссёрами и лайками, сохраняя порядок
+    private List<Film> hydrate(String endpoint, Collection<Film> films, LikesView likesView, Long viewerId) {
+        if (isMultiQueryHydration(endpoint, likesView, viewerId)) {
+            updateGenreAndLikeAndDirector(films);
+            return new ArrayList<>(films);
+        }
+        List<Long> filmIds = new ArrayList<>();
+        for (Film film : films) {
+            filmIds.add(film.getId());
+        }
+        return filmStorage.getHydratedFilmsByIds(filmIds, likesView, viewerId);
+    }
+
+    // старая загрузка тремя запросами умеет отдавать только полный список лайков
+    private boolean isMultiQueryHydration(String endpoint, LikesView likesView, Long viewerId) {
+        return likesView == LikesView.IDS && viewerId == null && multiQueryHydrationEndpoints.contains(endpoint);
+    }
+
     private void updateGenreAndLikeAndDirector(Collection<Film> films) {
         List<Long> filmIds = new ArrayList<>();
         for (Film film : films) {
@@ -189,50 +403,37 @@ public class FilmService {
     }
 
     public List<Film> searchFilms(String textQuery, List<String> searchParams) {
-        List<Film> searchResult = filmStorage.searchFilmsByNameOrDirector(textQuery, searchParams);
-        log.info("Поиск фильма по запросу {} ", textQuery);
-        updateGenreAndLikeAndDirector(searchResult);
-        return searchResult;
+        return searchFilms(textQuery, searchParams, LikesView.IDS, null);
     }
 
-    public List<Film> getRecommendationsByUserId(Long id) {
-        checkUserId(id);
-        Map<Long, Set<Film>> mapLikeFilms = filmStorage.getLikesFilms();
-        if (mapLikeFilms.isEmpty()) {
-            return Collections.EMPTY_LIST;
-        }
-        Set<Film> userLikeFilms = mapLikeFilms.remove(id); // удаляем данные нашего пользователя из мапы
-        long maxCommonLikes = 0L;
-        long checkIdUser = 0L;
-
-        for (Long userId : mapLikeFilms.keySet()) { // перебираем оставшихся пользователей
-            Set<Film> otherLikeFilms = mapLikeFilms.get(userId);
-
-            long count = 0;
-            for (Film f : otherLikeFilms) {  // проверяем совпадение фильмов
-                if (userLikeFilms.contains(f)) {
-                    count++;
-                }
-            }
-            if (count > maxCommonLikes) { // обновляем количество максимальных совпадений лайков ...
-                maxCommonLikes = count;
-                count = 0;
-                checkIdUser = userId;//... и запоминаем айди нужного пользователя
-            }
+    public List<Film> searchFilms(String textQuery, List<String> searchParams, LikesView likesView, Long viewerId) {
+        if (SEARCH_MODE_INDEX.equals(searchMode)) {
+            log.info("Поиск фильма по запросу {} ", textQuery);
+            return loadFilms("search", searchIndex.search(textQuery, searchParams), likesView, viewerId);
         }
-        if (maxCommonLikes == 0) {
-            return Collections.EMPTY_LIST;
+        if (SEARCH_MODE_FULLTEXT.equals(searchMode)) {
+            log.info("Полнотекстовый поиск фильма по запросу {} ", textQuery);
+            return loadFilms("search", filmStorage.searchFilmIdsByFullText(textQuery, searchParams), likesView,
+                    viewerId);
         }
-        // достаем фильмы наиболее подходящего пользователя и удаляем из списка фильмы которые уже лайкнуты
-        Set<Film> recommendUserFilms = mapLikeFilms.get(checkIdUser);
-
-        for (Film f : userLikeFilms) {
-            recommendUserFilms.remove(f);
+        List<Film> searchResult = filmStorage.searchFilmsByNameOrDirector(textQuery, searchParams);
+        log.info("Поиск фильма по запросу {} ", textQuery);
+        if (searchResult == null) {
+            return new ArrayList<>();
         }
-        if (recommendUserFilms.isEmpty()) {
-            return Collections.EMPTY_LIST;
+        return hydrate("search", searchResult, likesView, viewerId);
+    }
+
+    public List<Suggestion> suggest(String prefix, Integer count) {
+        if (count < 1) {
+            log.error("Число вариантов должно быть положительным.");
+            throw new IncorrectParameterException("count");
         }
-        updateGenreAndLikeAndDirector(recommendUserFilms);
-        return new ArrayList<>(recommendUserFilms);
+        return suggestIndex.suggest(prefix, count);
+    }
+
+    public List<Film> getRecommendationsByUserId(Long id) {
+        checkUserId(id);
+        return loadFilms("recommendations", recommendationEngine.recommend(id), LikesView.IDS, null);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,409 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Director;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.LikesView;
+import ru.yandex.practicum.filmorate.model.Suggestion;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Автодополнение названий фильмов и имён режиссёров по началу строки.
+// Имена лежат в префиксном дереве по нормализованному ключу (имя + \0 + тип + ID). Внутренний узел хранит top-size
+// самых тяжёлых вариантов своего поддерева, так что ответ - спуск на длину префикса и копия готового списка.
+// Поддеревья до bucket-size вариантов не дробятся на узлы, а лежат списком в листе и сортируются при запросе.
+// Вес фильма - число лайков, режиссёра - сумма лайков его фильмов. При смене веса пересчитываются только узлы
+// на пути к варианту, и подъём останавливается на первом узле, чей список лучших не затронут.
+@Component
+@Slf4j
+public class FilmSuggestIndex {
+    public static final String FILM = "film";
+    public static final String DIRECTOR = "director";
+
+    // тяжелее - раньше, при равном весе по имени
+    private static final Comparator<Entry> ORDER = Comparator.comparingLong((Entry entry) -> entry.weight).reversed()
+            .thenComparing(entry -> entry.name)
+            .thenComparing(entry -> entry.key);
+
+    private final FilmStorage filmStorage;
+    private final int topSize;
+    private final int bucketSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Entry> filmEntries = new HashMap<>();
+    private final Map<Integer, Entry> directorEntries = new HashMap<>();
+    private final Map<Integer, Set<Long>> directorFilms = new HashMap<>();
+    private final Map<Long, Set<Integer>> filmDirectors = new HashMap<>();
+    private Node root = new Node(0);
+
+    @Autowired
+    public FilmSuggestIndex(@Qualifier("filmDbStorage") FilmStorage filmStorage,
+                            @Value("${filmorate.films.suggest.top-size:20}") int topSize,
+                            @Value("${filmorate.films.suggest.bucket-size:64}") int bucketSize) {
+        this.filmStorage = filmStorage;
+        this.topSize = topSize;
+        this.bucketSize = Math.max(bucketSize, 1);
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        Collection<Film> allFilms = filmStorage.findAllHydrated(LikesView.COUNT, null);
+        lock.writeLock().lock();
+        try {
+            root = new Node(0);
+            filmEntries.clear();
+            directorEntries.clear();
+            directorFilms.clear();
+            filmDirectors.clear();
+            for (Film film : allFilms) {
+                insertFilm(film, film.getLikesCount());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Индекс автодополнения построен, фильмов: {}, режиссёров: {}.", allFilms.size(),
+                directorEntries.size());
+    }
+
+    // фильм должен быть загружен вместе с режиссёрами; у уже известного фильма вес сохраняется
+    public void putFilm(Film film) {
+        lock.writeLock().lock();
+        try {
+            Entry old = filmEntries.get(film.getId());
+            long likes = old != null ? old.weight : film.getLikesCount();
+            deleteFilm(film.getId());
+            insertFilm(film, likes);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFilm(Long filmId) {
+        lock.writeLock().lock();
+        try {
+            deleteFilm(filmId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void putDirector(Director director) {
+        lock.writeLock().lock();
+        try {
+            putDirectorName(director.getId(), director.getName());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeDirector(Integer directorId) {
+        lock.writeLock().lock();
+        try {
+            Entry entry = directorEntries.remove(directorId);
+            if (entry != null) {
+                remove(entry);
+            }
+            Set<Long> films = directorFilms.remove(directorId);
+            if (films != null) {
+                for (Long filmId : films) {
+                    Set<Integer> directors = filmDirectors.get(filmId);
+                    if (directors != null) {
+                        directors.remove(directorId);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // вызывается вместе с PopularFilmsLeaderboard.changeLikes
+    public void changeLikes(Long filmId, long delta) {
+        lock.writeLock().lock();
+        try {
+            Entry film = filmEntries.get(filmId);
+            if (film == null) {
+                return;
+            }
+            changeWeight(film, film.weight + delta);
+            for (Integer directorId : filmDirectors.getOrDefault(filmId, Set.of())) {
+                Entry director = directorEntries.get(directorId);
+                if (director != null) {
+                    changeWeight(director, director.weight + delta);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // не больше count вариантов, начинающихся с prefix, по убыванию лайков
+    public List<Suggestion> suggest(String prefix, int count) {
+        String text = FilmSearchIndex.normalize(prefix).strip();
+        if (text.isEmpty()) {
+            return List.of();
+        }
+        List<Suggestion> result = new ArrayList<>(Math.min(count, topSize));
+        lock.readLock().lock();
+        try {
+            for (Entry entry : find(text, count)) {
+                if (result.size() == count) {
+                    break;
+                }
+                result.add(new Suggestion(entry.name, entry.type, entry.id, entry.weight));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    // варианты по убыванию веса; список узла отдаётся как есть, без копирования
+    private List<Entry> find(String text, int count) {
+        Node node = root;
+        while (node.children != null && node.depth < text.length()) {
+            node = node.children.get(text.charAt(node.depth));
+            if (node == null) {
+                return List.of();
+            }
+        }
+        if (node.children != null && count <= topSize) {
+            return node.top;
+        }
+        // лист или просят больше, чем хранится в узле: перебираем поддерево
+        List<Entry> found = new ArrayList<>();
+        collect(node, text, found);
+        found.sort(ORDER);
+        return found;
+    }
+
+    private void collect(Node node, String text, List<Entry> found) {
+        for (Entry entry : node.entries) {
+            if (entry.key.startsWith(text)) {
+                found.add(entry);
+            }
+        }
+        if (node.children != null) {
+            for (Node child : node.children.values()) {
+                collect(child, text, found);
+            }
+        }
+    }
+
+    private void insertFilm(Film film, long likes) {
+        Entry entry = new Entry(film.getName(), FILM, film.getId(), likes);
+        filmEntries.put(film.getId(), entry);
+        insert(entry);
+        Set<Integer> directors = new HashSet<>();
+        for (Director director : film.getDirectors()) {
+            directors.add(director.getId());
+            directorFilms.computeIfAbsent(director.getId(), id -> new HashSet<>()).add(film.getId());
+            Entry directorEntry = directorEntries.get(director.getId());
+            if (directorEntry != null) {
+                changeWeight(directorEntry, directorEntry.weight + likes);
+            } else if (director.getName() != null) {
+                putDirectorName(director.getId(), director.getName());
+            }
+        }
+        filmDirectors.put(film.getId(), directors);
+    }
+
+    private void deleteFilm(Long filmId) {
+        Entry entry = filmEntries.remove(filmId);
+        if (entry != null) {
+            remove(entry);
+        }
+        Set<Integer> directors = filmDirectors.remove(filmId);
+        if (directors != null) {
+            for (Integer directorId : directors) {
+                Set<Long> films = directorFilms.get(directorId);
+                if (films != null) {
+                    films.remove(filmId);
+                }
+                Entry directorEntry = directorEntries.get(directorId);
+                if (entry != null && directorEntry != null) {
+                    changeWeight(directorEntry, directorEntry.weight - entry.weight);
+                }
+            }
+        }
+    }
+
+    private void putDirectorName(Integer directorId, String name) {
+        Entry old = directorEntries.get(directorId);
+        if (old != null) {
+            remove(old);
+        }
+        long likes = 0;
+        for (Long filmId : directorFilms.getOrDefault(directorId, Set.of())) {
+            Entry film = filmEntries.get(filmId);
+            if (film != null) {
+                likes += film.weight;
+            }
+        }
+        Entry entry = new Entry(name, DIRECTOR, directorId.longValue(), likes);
+        directorEntries.put(directorId, entry);
+        insert(entry);
+    }
+
+    private void insert(Entry entry) {
+        List<Node> path = path(entry, true);
+        Node node = path.get(path.size() - 1);
+        node.entries.add(entry);
+        if (node.children == null) {
+            path.remove(path.size() - 1);
+            if (node.entries.size() > bucketSize) {
+                split(node);
+                path.add(node);
+            }
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+            if (!offer(path.get(i), entry)) {
+                break;
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        List<Node> path = path(entry, false);
+        Node node = path.get(path.size() - 1);
+        node.entries.remove(entry);
+        if (node.children == null) {
+            path.remove(path.size() - 1);
+            if (node.entries.isEmpty() && !path.isEmpty()) {
+                path.get(path.size() - 1).children.remove(entry.key.charAt(node.depth - 1));
+            }
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Node parent = path.get(i);
+            if (!parent.top.contains(entry)) {
+                break;
+            }
+            recomputeTop(parent);
+        }
+    }
+
+    private void changeWeight(Entry entry, long weight) {
+        if (entry.weight == weight) {
+            return;
+        }
+        boolean increased = weight > entry.weight;
+        entry.weight = weight;
+        List<Node> path = path(entry, false);
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Node node = path.get(i);
+            if (node.children == null) {
+                continue;
+            }
+            if (node.top.contains(entry)) {
+                if (increased) {
+                    node.top.sort(ORDER);
+                } else {
+                    recomputeTop(node); // на освободившееся место может подняться вариант не из списка
+                }
+            } else if (!increased || !offer(node, entry)) {
+                break;
+            }
+        }
+    }
+
+    // узлы от корня до того, где лежит вариант
+    private List<Node> path(Entry entry, boolean create) {
+        List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        while (node.children != null && node.depth < entry.key.length()) {
+            int depth = node.depth;
+            node = create
+                    ? node.children.computeIfAbsent(entry.key.charAt(depth), c -> new Node(depth + 1))
+                    : node.children.get(entry.key.charAt(depth));
+            path.add(node);
+        }
+        return path;
+    }
+
+    // вставляет вариант в список лучших узла; false - не попал, а значит не попадёт и выше
+    private boolean offer(Node node, Entry entry) {
+        List<Entry> top = node.top;
+        if (top.contains(entry)) {
+            return true;
+        }
+        int position = Collections.binarySearch(top, entry, ORDER);
+        position = position < 0 ? -position - 1 : position;
+        if (position >= topSize) {
+            return false;
+        }
+        top.add(position, entry);
+        if (top.size() > topSize) {
+            top.remove(top.size() - 1);
+        }
+        return true;
+    }
+
+    // лист превращается во внутренний узел; слишком большие дети делятся дальше
+    private void split(Node node) {
+        List<Entry> all = node.entries;
+        node.entries = new ArrayList<>();
+        node.children = new HashMap<>();
+        for (Entry entry : all) {
+            if (entry.key.length() == node.depth) {
+                node.entries.add(entry);
+            } else {
+                node.children.computeIfAbsent(entry.key.charAt(node.depth), c -> new Node(node.depth + 1))
+                        .entries.add(entry);
+            }
+        }
+        for (Node child : node.children.values()) {
+            if (child.entries.size() > bucketSize) {
+                split(child);
+            }
+        }
+        recomputeTop(node);
+    }
+
+    private void recomputeTop(Node node) {
+        List<Entry> candidates = new ArrayList<>(node.entries);
+        for (Node child : node.children.values()) {
+            candidates.addAll(child.children == null ? child.entries : child.top);
+        }
+        candidates.sort(ORDER);
+        node.top = new ArrayList<>(candidates.subList(0, Math.min(topSize, candidates.size())));
+    }
+
+    private static String key(String name, String type, Long id) {
+        return FilmSearchIndex.normalize(name).strip() + '\0' + type + id;
+    }
+
+    private static final class Node {
+        private final int depth;
+        private List<Entry> entries = new ArrayList<>(); // в листе - всё поддерево, иначе - ключи длины depth
+        private Map<Character, Node> children; // null у листа
+        private List<Entry> top = List.of();
+
+        private Node(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final String type;
+        private final Long id;
+        private final String key;
+        private long weight;
+
+        private Entry(String name, String type, Long id, long weight) {
+            this.name = name;
+            this.type = type;
+            this.id = id;
+            this.key = key(name, type, id);
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+
+// Сверяет проекцию FILM_VIEW с нормализованными таблицами и пересобирает разошедшиеся строки:
+// например, после удаления пользователя, чьи оценки отзывов удалились каскадно.
+@Component
+@Slf4j
+public class FilmViewConsistencyJob {
+    private final FilmStorage filmStorage;
+
+    @Autowired
+    public FilmViewConsistencyJob(@Qualifier("filmDbStorage") FilmStorage filmStorage) {
+        this.filmStorage = filmStorage;
+    }
+
+    @Scheduled(initialDelayString = "${filmorate.films.view.check-interval-ms:600000}",
+            fixedDelayString = "${filmorate.films.view.check-interval-ms:600000}")
+    public int check() {
+        int repaired = filmStorage.repairFilmView();
+        if (repaired > 0) {
+            log.warn("Проекция FILM_VIEW разошлась с данными у {} фильмов, строки пересобраны.", repaired);
+        }
+        return repaired;
+    }
+}
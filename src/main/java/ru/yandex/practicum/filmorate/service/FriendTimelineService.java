@@ -0,0 +1,155 @@
+package ru.yandex.practicum.filmorate.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.yandex.practicum.filmorate.model.Feed;
+import ru.yandex.practicum.filmorate.storage.feed.FeedRecordedEvent;
+import ru.yandex.practicum.filmorate.storage.feed.FeedStorage;
+import ru.yandex.practicum.filmorate.storage.feed.TimelineStorage;
+import ru.yandex.practicum.filmorate.storage.user.UserStorage;
+
+import java.util.*;
+
+// Лента "что делали друзья" с раскладкой при записи (fan-out-on-write).
+// Записанное событие автора сразу добавляется в ленты его подписчиков: в таблицу TIMELINE
+// и в буферы последних событий тех лент, которые сейчас загружены в память.
+// События авторов, у которых больше fan-out-limit подписчиков, не раскладываются, а подмешиваются при чтении.
+@Service
+@Slf4j
+public class FriendTimelineService {
+    private final TimelineStorage timelineStorage;
+    private final UserStorage userStorage;
+    private final FeedStorage feedStorage;
+    private final int fanOutLimit;
+    private final int maxSize;
+    private final int memorySize;
+    private final Cache<Long, RecentEvents> recentEvents;
+
+    @Autowired
+    public FriendTimelineService(@Qualifier("timelineDbStorage") TimelineStorage timelineStorage,
+                                 @Qualifier("userDbStorage") UserStorage userStorage,
+                                 @Qualifier("feedDbStorage") FeedStorage feedStorage,
+                                 @Value("${filmorate.timeline.fan-out-limit:1000}") int fanOutLimit,
+                                 @Value("${filmorate.timeline.max-size:1000}") int maxSize,
+                                 @Value("${filmorate.timeline.memory-size:100}") int memorySize,
+                                 @Value("${filmorate.timeline.memory-timelines:10000}") long memoryTimelines) {
+        this.timelineStorage = timelineStorage;
+        this.userStorage = userStorage;
+        this.feedStorage = feedStorage;
+        this.fanOutLimit = fanOutLimit;
+        this.maxSize = maxSize;
+        this.memorySize = memorySize;
+        this.recentEvents = Caffeine.newBuilder().maximumSize(memoryTimelines).build();
+    }
+
+    @EventListener
+    public void onFeedRecorded(FeedRecordedEvent event) {
+        Map<Long, List<Long>> followersByAuthor = new HashMap<>();
+        for (Feed feed : event.getFeeds()) {
+            if (feed.getEventId() == null) {
+                continue;
+            }
+            try {
+                List<Long> followers = followersByAuthor.computeIfAbsent(feed.getUserId(),
+                        userStorage::getFollowerIds);
+                if (followers.isEmpty() || followers.size() > fanOutLimit) {
+                    continue;
+                }
+                timelineStorage.addEvent(followers, feed.getEventId());
+                for (Long followerId : followers) {
+                    recentEvents.asMap().computeIfPresent(followerId, (id, recent) -> recent.add(feed));
+                }
+            } catch (DataAccessException e) {
+                // например, подписчика удалили одновременно с раскладкой
+                log.error("Событие {} не разложено по лентам друзей: {}", feed.getEventId(), e.getMessage());
+            }
+        }
+    }
+
+    // события друзей userId от новых к старым с EVENT_ID меньше beforeEventId
+    public List<Feed> getTimeline(Long userId, Long beforeEventId, int limit) {
+        Set<Long> friendIds = new HashSet<>(userStorage.getFriendIds(userId));
+        RecentEvents recent = recentEvents.get(userId,
+                id -> new RecentEvents(timelineStorage.getTimeline(id, null, memorySize), memorySize));
+        List<Feed> events = recent.find(beforeEventId, limit, friendIds);
+        if (events == null) {
+            events = timelineStorage.getTimeline(userId, beforeEventId, limit);
+        }
+        List<Long> popularFriends = userStorage.getPopularFriendIds(userId, fanOutLimit);
+        if (popularFriends.isEmpty()) {
+            return events;
+        }
+        // автор мог стать популярным недавно, и часть его событий уже разложена по лентам
+        NavigableMap<Long, Feed> merged = new TreeMap<>(Comparator.reverseOrder());
+        for (Feed feed : events) {
+            merged.put(feed.getEventId(), feed);
+        }
+        for (Feed feed : feedStorage.getFeedByUserIds(popularFriends, beforeEventId, limit)) {
+            merged.put(feed.getEventId(), feed);
+        }
+        List<Feed> result = new ArrayList<>();
+        for (Feed feed : merged.values()) {
+            if (result.size() == limit) {
+                break;
+            }
+            result.add(feed);
+        }
+        return result;
+    }
+
+    @Scheduled(fixedDelayString = "${filmorate.timeline.trim-interval-ms:600000}")
+    public void trim() {
+        int removed = timelineStorage.trim(maxSize);
+        if (removed > 0) {
+            log.info("Из лент друзей удалено {} старых событий.", removed);
+        }
+    }
+
+    // последние события одной ленты по возрастанию EVENT_ID
+    private static final class RecentEvents {
+        private final int capacity;
+        private final NavigableMap<Long, Feed> events = new TreeMap<>();
+        private boolean truncated; // в базе есть события старше тех, что в памяти
+
+        private RecentEvents(List<Feed> newestFirst, int capacity) {
+            this.capacity = capacity;
+            for (Feed feed : newestFirst) {
+                events.put(feed.getEventId(), feed);
+            }
+            truncated = newestFirst.size() >= capacity;
+        }
+
+        private synchronized RecentEvents add(Feed feed) {
+            events.put(feed.getEventId(), feed);
+            if (events.size() > capacity) {
+                events.pollFirstEntry();
+                truncated = true;
+            }
+            return this;
+        }
+
+        // null, если событий в памяти не хватает и нужно читать из базы
+        private synchronized List<Feed> find(Long beforeEventId, int limit, Set<Long> authorIds) {
+            NavigableMap<Long, Feed> candidates = beforeEventId == null
+                    ? events.descendingMap() : events.headMap(beforeEventId, false).descendingMap();
+            List<Feed> result = new ArrayList<>();
+            for (Feed feed : candidates.values()) {
+                if (result.size() == limit) {
+                    break;
+                }
+                if (authorIds.contains(feed.getUserId())) {
+                    result.add(feed);
+                }
+            }
+            return result.size() == limit || !truncated ? result : null;
+        }
+    }
+}
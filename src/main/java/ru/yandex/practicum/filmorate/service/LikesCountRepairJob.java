@@ -0,0 +1,40 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+
+// Пересчитывает FILMS.LIKES_COUNT по таблице FILM_LIKES: заполнение после миграции и починка расхождений.
+@Component
+@Slf4j
+public class LikesCountRepairJob {
+    private final FilmStorage filmStorage;
+    private final boolean repairOnStartup;
+
+    @Autowired
+    public LikesCountRepairJob(@Qualifier("filmDbStorage") FilmStorage filmStorage,
+                               @Value("${filmorate.likes-count.repair-on-startup:false}") boolean repairOnStartup) {
+        this.filmStorage = filmStorage;
+        this.repairOnStartup = repairOnStartup;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void repairOnStartup() {
+        if (repairOnStartup) {
+            repair();
+        }
+    }
+
+    public int repair() {
+        int repaired = filmStorage.recalculateLikesCount();
+        if (repaired > 0) {
+            log.warn("Счётчик лайков был рассинхронизирован у {} фильмов и пересчитан.", repaired);
+        }
+        return repaired;
+    }
+}
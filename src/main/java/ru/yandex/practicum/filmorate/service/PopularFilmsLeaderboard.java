@@ -0,0 +1,187 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.FilmPopularity;
+import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+// Рейтинг фильмов по количеству лайков в памяти: общий, по жанрам и по годам выпуска.
+// Заполняется из базы при старте и дальше обновляется инкрементально из FilmService.
+// Изменения в базе, за которыми следует правка рейтинга, выполняются через update: пересборка ждёт их окончания
+// и не пропускает их, пока читает снимок, иначе изменение потеряется или учтётся дважды.
+@Component
+@Slf4j
+public class PopularFilmsLeaderboard {
+    private static final Comparator<Entry> ORDER = Comparator.comparingLong((Entry e) -> e.likes).reversed()
+            .thenComparingLong(e -> e.filmId);
+
+    private final FilmStorage filmStorage;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ReadWriteLock rebuildLock = new ReentrantReadWriteLock(); // обновления делят, пересборка - одна
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final NavigableSet<Entry> all = new TreeSet<>(ORDER);
+    private final Map<Integer, NavigableSet<Entry>> byGenre = new HashMap<>();
+    private final Map<Integer, NavigableSet<Entry>> byYear = new HashMap<>();
+
+    @Autowired
+    public PopularFilmsLeaderboard(@Qualifier("filmDbStorage") FilmStorage filmStorage) {
+        this.filmStorage = filmStorage;
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        Collection<FilmPopularity> films;
+        rebuildLock.writeLock().lock();
+        try {
+            films = filmStorage.getFilmPopularity();
+            lock.writeLock().lock();
+            try {
+                entries.clear();
+                all.clear();
+                byGenre.clear();
+                byYear.clear();
+                for (FilmPopularity film : films) {
+                    insert(new Entry(film.getFilmId(), film.getLikesCount(), film.getReleaseDate().getYear(),
+                            Set.copyOf(film.getGenreIds())));
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            rebuildLock.writeLock().unlock();
+        }
+        log.info("Рейтинг популярных фильмов построен, фильмов: {}.", films.size());
+    }
+
+    // change меняет базу и правит рейтинг; изменение должно быть закоммичено до выхода из change
+    public <T> T update(Supplier<T> change) {
+        rebuildLock.readLock().lock();
+        try {
+            return change.get();
+        } finally {
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    // добавляет фильм или обновляет его жанры и год, сохраняя накопленные лайки
+    public void putFilm(Long filmId, int year, Set<Integer> genreIds) {
+        lock.writeLock().lock();
+        try {
+            Entry old = entries.get(filmId);
+            long likes = 0;
+            if (old != null) {
+                likes = old.likes;
+                remove(old);
+            }
+            insert(new Entry(filmId, likes, year, Set.copyOf(genreIds)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFilm(Long filmId) {
+        lock.writeLock().lock();
+        try {
+            Entry old = entries.get(filmId);
+            if (old != null) {
+                remove(old);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void changeLikes(Long filmId, long delta) {
+        lock.writeLock().lock();
+        try {
+            Entry old = entries.get(filmId);
+            if (old != null) {
+                remove(old);
+                insert(new Entry(filmId, old.likes + delta, old.year, old.genreIds));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long getLikes(Long filmId) {
+        lock.readLock().lock();
+        try {
+            Entry entry = entries.get(filmId);
+            return entry == null ? 0 : entry.likes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Long> getTopN(int count, Integer genreId, Integer year) {
+        List<Long> ids = new ArrayList<>();
+        if (count <= 0) {
+            return ids;
+        }
+        lock.readLock().lock();
+        try {
+            NavigableSet<Entry> source = all;
+            if (genreId != null && year != null) {
+                NavigableSet<Entry> genreSet = byGenre.getOrDefault(genreId, Collections.emptyNavigableSet());
+                NavigableSet<Entry> yearSet = byYear.getOrDefault(year, Collections.emptyNavigableSet());
+                source = genreSet.size() < yearSet.size() ? genreSet : yearSet; // фильтруем меньший срез
+            } else if (genreId != null) {
+                source = byGenre.getOrDefault(genreId, Collections.emptyNavigableSet());
+            } else if (year != null) {
+                source = byYear.getOrDefault(year, Collections.emptyNavigableSet());
+            }
+            for (Entry entry : source) {
+                if (ids.size() == count) {
+                    break;
+                }
+                if ((genreId == null || entry.genreIds.contains(genreId)) && (year == null || entry.year == year)) {
+                    ids.add(entry.filmId);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return ids;
+    }
+
+    private void insert(Entry entry) {
+        entries.put(entry.filmId, entry);
+        all.add(entry);
+        for (Integer genreId : entry.genreIds) {
+            byGenre.computeIfAbsent(genreId, id -> new TreeSet<>(ORDER)).add(entry);
+        }
+        byYear.computeIfAbsent(entry.year, y -> new TreeSet<>(ORDER)).add(entry);
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.filmId);
+        all.remove(entry);
+        for (Integer genreId : entry.genreIds) {
+            byGenre.get(genreId).remove(entry);
+        }
+        byYear.get(entry.year).remove(entry);
+    }
+
+    private static final class Entry {
+        private final long filmId;
+        private final long likes;
+        private final int year;
+        private final Set<Integer> genreIds;
+
+        private Entry(long filmId, long likes, int year, Set<Integer> genreIds) {
+            this.filmId = filmId;
+            this.likes = likes;
+            this.year = year;
+            this.genreIds = genreIds;
+        }
+    }
+}
@@ -3,12 +3,18 @@ package ru.yandex.practicum.filmorate.service;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.stereotype.Service;
+import ru.yandex.practicum.filmorate.config.CacheConfig;
 import ru.yandex.practicum.filmorate.exception.FilmNotFoundException;
 import ru.yandex.practicum.filmorate.exception.IncorrectParameterException;
 import ru.yandex.practicum.filmorate.exception.ReviewNotFoundException;
 import ru.yandex.practicum.filmorate.exception.UserNotFoundException;
 import ru.yandex.practicum.filmorate.model.Review;
+import ru.yandex.practicum.filmorate.model.ReviewVote;
+import ru.yandex.practicum.filmorate.model.ReviewVoteBatchResult;
 import ru.yandex.practicum.filmorate.model.EventType;
 import ru.yandex.practicum.filmorate.model.Operation;
 import ru.yandex.practicum.filmorate.storage.feed.FeedStorage;
@@ -16,7 +22,7 @@ import ru.yandex.practicum.filmorate.storage.film.FilmStorage;
 import ru.yandex.practicum.filmorate.storage.review.ReviewStorage;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 
-import java.util.Collection;
+import java.util.*;
 
 @Service
 @Slf4j
@@ -26,33 +32,55 @@ public class ReviewService {
     private final UserStorage userStorage;
     private final FilmStorage filmStorage;
     private final FeedStorage feedStorage;
+    private final Cache firstPages;
+    private final int firstPageSize;
+    private final int maxVoteBatchSize;
 
     @Autowired
     public ReviewService(@Qualifier("reviewDbStorage") ReviewStorage reviewStorage,
                          @Qualifier("userDbStorage") UserStorage userStorage,
                          @Qualifier("filmDbStorage") FilmStorage filmStorage,
-                         @Qualifier("feedDbStorage") FeedStorage feedStorage) {
+                         @Qualifier("bufferedFeedStorage") FeedStorage feedStorage,
+                         CacheManager cacheManager,
+                         @Value("${filmorate.reviews.first-page-size:50}") int firstPageSize,
+                         @Value("${filmorate.reviews.votes.batch.max-size:10000}") int maxVoteBatchSize) {
         this.filmStorage = filmStorage;
         this.userStorage = userStorage;
         this.reviewStorage = reviewStorage;
         this.feedStorage = feedStorage;
+        this.firstPages = cacheManager.getCache(CacheConfig.REVIEWS);
+        this.firstPageSize = firstPageSize;
+        this.maxVoteBatchSize = maxVoteBatchSize;
     }
 
     public Collection<Review> findTopNReviews(Long count) {
-        if (count < 0) {
-            log.error("Количество отзвывов не может быть отрицательным.");
-            throw new IncorrectParameterException("count");
-        }
-        return reviewStorage.getTopNReviews(count);
+        return findReviews(null, null, null, count);
     }
 
     public Collection<Review> findTopNReviewsByFilmId(Long filmId, Long count) {
+        return findReviews(filmId, null, null, count);
+    }
+
+    // страница отзывов после отзыва с полезностью afterUseful и ID afterId, курсор - последний отзыв прошлой страницы
+    public List<Review> findReviews(Long filmId, Long afterUseful, Long afterId, Long count) {
         if (count < 0) {
             log.error("Количество отзвывов не может быть отрицательным.");
             throw new IncorrectParameterException("count");
         }
+        if ((afterUseful == null) != (afterId == null)) {
+            log.error("Для следующей страницы отзывов нужны и полезность, и ID последнего отзыва.");
+            throw new IncorrectParameterException(afterUseful == null ? "afterUseful" : "afterId");
+        }
+        if (filmId == null) {
+            return reviewStorage.getReviewsPage(null, afterUseful, afterId, count);
+        }
         checkFilmId(filmId);
-        return reviewStorage.getTopNReviewsByFilmId(filmId, count);
+        if (afterId != null || count > firstPageSize) {
+            return reviewStorage.getReviewsPage(filmId, afterUseful, afterId, count);
+        }
+        List<Review> firstPage = firstPages.get(filmId,
+                () -> reviewStorage.getReviewsPage(filmId, null, null, (long) firstPageSize));
+        return new ArrayList<>(firstPage.subList(0, (int) Math.min(count, firstPage.size())));
     }
 
     public Review createReview(Review review) {
@@ -63,6 +91,7 @@ public class ReviewService {
         }
         Long reviewId = reviewStorage.createReview(review).getReviewId();
         review.setReviewId(reviewId);
+        firstPages.evict(review.getFilmId());
         log.info("Добавили отзыв: {}", review);
         feedStorage.addFeed(reviewId, review.getUserId(), EventType.REVIEW, Operation.ADD);
         return review;
@@ -72,8 +101,9 @@ public class ReviewService {
         Long requestedId = review.getReviewId();
         review = reviewStorage.updateReview(review);
         if (review == null) {
-            throw new UserNotFoundException("Отзыв  с ID = " + requestedId + " не найден.");
+            throw new ReviewNotFoundException("Отзыв  с ID = " + requestedId + " не найден.");
         }
+        firstPages.evict(review.getFilmId());
         log.info("Обновлен отзыв c id = {}", review.getReviewId());
         feedStorage.addFeed(review.getReviewId(), review.getUserId(), EventType.REVIEW, Operation.UPDATE);
         return review;
@@ -86,6 +116,8 @@ public class ReviewService {
         }
         Long userId = review.getUserId();
         reviewStorage.deleteReview(reviewId);
+        firstPages.evict(review.getFilmId());
+        filmStorage.refreshFilmViewByReview(review.getFilmId());
         log.info("Удален отзыв c id = {}", reviewId);
         checkUserId(userId);
         feedStorage.addFeed(reviewId, userId, EventType.REVIEW, Operation.REMOVE);
@@ -100,47 +132,94 @@ public class ReviewService {
     }
 
     public void addLike(Long reviewId, Long userId) {
-        checkReviewId(userId);
+        Long filmId = getReviewById(reviewId).getFilmId();
         checkUserId(userId);
         reviewStorage.addLike(reviewId, userId);
+        firstPages.evict(filmId);
+        filmStorage.refreshFilmViewByReview(filmId);
         log.info("Пользователь(id = {}) поставил лайк отзыву c id: {} .", userId, reviewId);
     }
 
     public void addDislike(Long reviewId, Long userId) {
-        checkReviewId(userId);
+        Long filmId = getReviewById(reviewId).getFilmId();
         checkUserId(userId);
         reviewStorage.addDislike(reviewId, userId);
+        firstPages.evict(filmId);
+        filmStorage.refreshFilmViewByReview(filmId);
         log.info("Пользователь(id = {}) поставил дизлайк отзыву c id: {} .", userId, reviewId);
     }
 
     public void removeLike(Long reviewId, Long userId) {
-        checkReviewId(userId);
+        Long filmId = getReviewById(reviewId).getFilmId();
         checkUserId(userId);
         reviewStorage.removeLike(reviewId, userId);
+        firstPages.evict(filmId);
+        filmStorage.refreshFilmViewByReview(filmId);
         log.info("Пользователь(id = {}) удалил лайк отзыву c id: {} .", userId, reviewId);
     }
 
     public void removeDislike(Long reviewId, Long userId) {
-        checkReviewId(userId);
+        Long filmId = getReviewById(reviewId).getFilmId();
         checkUserId(userId);
         reviewStorage.removeDislike(reviewId, userId);
+        firstPages.evict(filmId);
+        filmStorage.refreshFilmViewByReview(filmId);
         log.info("Пользователь(id = {}) удалил дизлайк отзыву c id: {} .", userId, reviewId);
     }
 
-    private void checkReviewId(Long id) {
-        if (id < 1 || reviewStorage.getReview(id) == null) {
-            throw new UserNotFoundException("Отзыв  с ID = " + id + " не найден.");
+    public ReviewVoteBatchResult applyVotes(List<ReviewVote> votes) {
+        if (votes.size() > maxVoteBatchSize) {
+            log.error("В пакете больше {} оценок отзывов.", maxVoteBatchSize);
+            throw new IncorrectParameterException("votes");
+        }
+        // для пары отзыв-пользователь важна только последняя оценка в пакете
+        Map<List<Long>, ReviewVote> lastByPair = new LinkedHashMap<>();
+        Set<Long> reviewIds = new HashSet<>();
+        Set<Long> userIds = new HashSet<>();
+        for (ReviewVote vote : votes) {
+            if (vote.getReviewId() == null) {
+                throw new IncorrectParameterException("reviewId");
+            }
+            if (vote.getUserId() == null) {
+                throw new IncorrectParameterException("userId");
+            }
+            if (vote.getRating() == null || Math.abs(vote.getRating()) > 1) {
+                throw new IncorrectParameterException("rating");
+            }
+            List<Long> pair = List.of(vote.getReviewId(), vote.getUserId());
+            lastByPair.remove(pair);
+            lastByPair.put(pair, vote);
+            reviewIds.add(vote.getReviewId());
+            userIds.add(vote.getUserId());
+        }
+        Map<Long, Long> filmIds = reviewStorage.getFilmIdsByReviewIds(reviewIds);
+        if (filmIds.size() != reviewIds.size()) {
+            reviewIds.removeAll(filmIds.keySet());
+            throw new ReviewNotFoundException("Отзывы с ID = " + reviewIds + " не найдены.");
+        }
+        List<Long> missingUsers = userStorage.findMissingUsers(userIds);
+        if (!missingUsers.isEmpty()) {
+            throw new UserNotFoundException("Пользователи с ID = " + missingUsers + " не найдены.");
+        }
+
+        List<ReviewVote> changed = reviewStorage.applyVotes(new ArrayList<>(lastByPair.values()));
+        Set<Long> changedFilms = new HashSet<>();
+        for (ReviewVote vote : changed) {
+            changedFilms.add(filmIds.get(vote.getReviewId()));
         }
+        changedFilms.forEach(firstPages::evict);
+        filmStorage.refreshFilmView(changedFilms);
+        return new ReviewVoteBatchResult(votes.size(), changed.size());
     }
 
     private void checkFilmId(Long id) {
-        if (id < 1 || filmStorage.getFilm(id) == null) {
+        if (id < 1 || !filmStorage.existsFilm(id)) {
             throw new FilmNotFoundException("Фильм с ID = " + id + " не найден.");
         }
     }
 
     private void checkUserId(Long id) {
-        if (id < 1 || userStorage.getUser(id) == null) {
+        if (id < 1 || !userStorage.existsUser(id)) {
             throw new UserNotFoundException("Пользователь  с ID = " + id + " не найден.");
         }
     }
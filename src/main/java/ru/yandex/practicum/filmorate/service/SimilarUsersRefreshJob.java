@@ -0,0 +1,56 @@
+package ru.yandex.practicum.filmorate.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+// Фоновый пересчёт top-K похожих пользователей для рекомендаций.
+@Component
+@Slf4j
+public class SimilarUsersRefreshJob {
+    private final FilmRecommendationEngine recommendationEngine;
+    private final Timer refreshTimer;
+    private volatile long lastRefreshFinishedAt = System.currentTimeMillis();
+    private volatile long lastRefreshDurationMs;
+
+    @Autowired
+    public SimilarUsersRefreshJob(FilmRecommendationEngine recommendationEngine, MeterRegistry meterRegistry) {
+        this.recommendationEngine = recommendationEngine;
+        this.refreshTimer = Timer.builder("filmorate.recommendations.refresh")
+                .description("Время пересчёта похожих пользователей")
+                .register(meterRegistry);
+        Gauge.builder("filmorate.recommendations.staleness", this,
+                        job -> (System.currentTimeMillis() - job.lastRefreshFinishedAt) / 1000.0)
+                .description("Секунд с окончания последнего пересчёта")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder("filmorate.recommendations.refresh.last.duration", this, job -> job.lastRefreshDurationMs)
+                .description("Длительность последнего пересчёта")
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        Gauge.builder("filmorate.recommendations.dirty.users", recommendationEngine,
+                        FilmRecommendationEngine::getDirtyUsersCount)
+                .description("Пользователи, ожидающие пересчёта")
+                .register(meterRegistry);
+    }
+
+    @Scheduled(fixedDelayString = "${filmorate.recommendations.refresh-interval-ms:60000}",
+            initialDelayString = "${filmorate.recommendations.refresh-interval-ms:60000}")
+    public void refresh() {
+        long start = System.nanoTime();
+        int refreshed = recommendationEngine.refreshSimilarUsers();
+        long duration = System.nanoTime() - start;
+        refreshTimer.record(duration, TimeUnit.NANOSECONDS);
+        lastRefreshDurationMs = TimeUnit.NANOSECONDS.toMillis(duration);
+        lastRefreshFinishedAt = System.currentTimeMillis();
+        if (refreshed > 0) {
+            log.info("Пересчитаны похожие пользователи для {} пользователей за {} мс.", refreshed, lastRefreshDurationMs);
+        }
+    }
+}
@@ -4,6 +4,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.yandex.practicum.filmorate.exception.IncorrectParameterException;
 import ru.yandex.practicum.filmorate.exception.UserNotFoundException;
 import ru.yandex.practicum.filmorate.model.EventType;
 import ru.yandex.practicum.filmorate.model.Feed;
@@ -12,27 +14,57 @@ import ru.yandex.practicum.filmorate.model.User;
 import ru.yandex.practicum.filmorate.storage.feed.FeedStorage;
 import ru.yandex.practicum.filmorate.storage.user.UserStorage;
 
+import java.time.Instant;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 @Service
 @Slf4j
 public class UserService {
     private final UserStorage userStorage;
     private final FeedStorage feedStorage;
+    private final PopularFilmsLeaderboard popularFilms;
+    private final FilmRecommendationEngine recommendationEngine;
+    private final FilmSuggestIndex suggestIndex;
+    private final FriendTimelineService friendTimeline;
+    private final FeedStreamRegistry feedStreams;
 
 
     @Autowired
     public UserService(@Qualifier("userDbStorage") UserStorage userStorage,
-                       @Qualifier("feedDbStorage") FeedStorage feedStorage) {
+                       @Qualifier("bufferedFeedStorage") FeedStorage feedStorage,
+                       PopularFilmsLeaderboard popularFilms,
+                       FilmRecommendationEngine recommendationEngine,
+                       FilmSuggestIndex suggestIndex,
+                       FriendTimelineService friendTimeline,
+                       FeedStreamRegistry feedStreams) {
         this.userStorage = userStorage;
         this.feedStorage = feedStorage;
+        this.popularFilms = popularFilms;
+        this.recommendationEngine = recommendationEngine;
+        this.suggestIndex = suggestIndex;
+        this.friendTimeline = friendTimeline;
+        this.feedStreams = feedStreams;
     }
 
     public Collection<User> findAll() {
         return userStorage.findAll();
     }
 
+    // страница пользователей по возрастанию ID: пользователи с ID больше afterId
+    public List<User> findPage(Long afterId, Integer limit) {
+        if (limit < 1) {
+            log.error("Размер страницы должен быть положительным.");
+            throw new IncorrectParameterException("limit");
+        }
+        return userStorage.findPage(afterId, limit);
+    }
+
+    public void streamAll(Consumer<User> consumer) {
+        userStorage.streamAll(consumer);
+    }
+
     public User createUser(User user) {
         checkName(user);
         return userStorage.createUser(user);
@@ -46,7 +78,15 @@ public class UserService {
 
     public void deleteUser(Long userId) {
         checkUserId(userId);
-        userStorage.deleteUser(userId);
+        popularFilms.update(() -> {
+            userStorage.deleteUser(userId);
+            // лайки пользователя удаляются каскадно, убираем их и из индексов в памяти
+            for (Long filmId : recommendationEngine.removeUser(userId)) {
+                popularFilms.changeLikes(filmId, -1);
+                suggestIndex.changeLikes(filmId, -1);
+            }
+            return null;
+        });
     }
 
     public void addFriend(Long userId, Long friendId) {
@@ -88,6 +128,32 @@ public class UserService {
         return feedStorage.getFeedByUserId(id);
     }
 
+    public List<Feed> getFeedByUserId(Long id, Long afterId, Instant since, Instant before, Integer limit) {
+        checkUserId(id);
+        if (limit != null && limit < 1) {
+            log.error("Размер страницы должен быть положительным.");
+            throw new IncorrectParameterException("limit");
+        }
+        if (afterId == null && since == null && before == null && limit == null) {
+            return feedStorage.getFeedByUserId(id);
+        }
+        return feedStorage.getFeedByUserId(id, afterId, since, before, limit);
+    }
+
+    public List<Feed> getFriendsFeed(Long id, Long beforeEventId, Integer limit) {
+        checkUserId(id);
+        if (limit < 1) {
+            log.error("Размер страницы должен быть положительным.");
+            throw new IncorrectParameterException("limit");
+        }
+        return friendTimeline.getTimeline(id, beforeEventId, limit);
+    }
+
+    public SseEmitter subscribeToFeed(Long id, Long lastEventId) {
+        checkUserId(id);
+        return feedStreams.subscribe(id, lastEventId);
+    }
+
     private void checkName(User user) {
         if (user.getName() == null || user.getName().isBlank()) {
             user.setName(user.getLogin());
@@ -95,7 +161,7 @@ public class UserService {
     }
 
     private void checkUserId(Long id) {
-        if (id < 1 || userStorage.getUser(id) == null) {
+        if (id < 1 || !userStorage.existsUser(id)) {
             throw new UserNotFoundException("Пользователь  с ID = " + id + " не найден.");
         }
     }
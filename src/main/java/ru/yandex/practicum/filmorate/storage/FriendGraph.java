@@ -0,0 +1,204 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Граф дружбы в памяти: для каждого пользователя битовые карты тех, кого он добавил в друзья, и тех, кто добавил его.
+// Как и в LiveIdSet, изменения видны сразу, а при откате транзакции, в которой они сделаны, отменяются.
+public class FriendGraph {
+    private final Map<Long, Roaring64Bitmap> friends = new HashMap<>();
+    private final Map<Long, Roaring64Bitmap> followers = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // source передаёт в полученную функцию все пары (пользователь, друг)
+    public void reset(Consumer<BiConsumer<Long, Long>> source) {
+        lock.writeLock().lock();
+        try {
+            friends.clear();
+            followers.clear();
+            source.accept(this::link);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(Long userId, Long friendId) {
+        lock.readLock().lock();
+        try {
+            Roaring64Bitmap userFriends = friends.get(userId);
+            return userFriends != null && userFriends.contains(friendId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ID друзей по возрастанию
+    public List<Long> getFriends(Long userId) {
+        lock.readLock().lock();
+        try {
+            return toList(friends.get(userId));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Long> getFollowers(Long userId) {
+        lock.readLock().lock();
+        try {
+            return toList(followers.get(userId));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Long> getCommonFriends(Long userId, Long otherId) {
+        lock.readLock().lock();
+        try {
+            Roaring64Bitmap userFriends = friends.get(userId);
+            Roaring64Bitmap otherFriends = friends.get(otherId);
+            if (userFriends == null || otherFriends == null) {
+                return List.of();
+            }
+            Roaring64Bitmap common = new Roaring64Bitmap();
+            common.or(userFriends);
+            common.and(otherFriends);
+            return toList(common);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // друзья пользователя, которых добавили в друзья больше minFollowers человек
+    public List<Long> getPopularFriends(Long userId, int minFollowers) {
+        List<Long> popular = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Roaring64Bitmap userFriends = friends.get(userId);
+            if (userFriends != null) {
+                userFriends.forEach(friendId -> {
+                    Roaring64Bitmap friendFollowers = followers.get(friendId);
+                    if (friendFollowers != null && friendFollowers.getLongCardinality() > minFollowers) {
+                        popular.add(friendId);
+                    }
+                });
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return popular;
+    }
+
+    public void add(Long userId, Long friendId) {
+        lock.writeLock().lock();
+        try {
+            if (!link(userId, friendId)) {
+                return;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        onRollback(() -> unlinkLocked(userId, friendId));
+    }
+
+    public void remove(Long userId, Long friendId) {
+        if (unlinkLocked(userId, friendId)) {
+            onRollback(() -> linkLocked(userId, friendId));
+        }
+    }
+
+    // связи удалённого пользователя в обе стороны
+    public void removeUser(Long userId) {
+        List<Long> userFriends;
+        List<Long> userFollowers;
+        lock.writeLock().lock();
+        try {
+            userFriends = toList(friends.get(userId));
+            userFollowers = toList(followers.get(userId));
+            userFriends.forEach(friendId -> unlink(userId, friendId));
+            userFollowers.forEach(followerId -> unlink(followerId, userId));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        onRollback(() -> {
+            userFriends.forEach(friendId -> linkLocked(userId, friendId));
+            userFollowers.forEach(followerId -> linkLocked(followerId, userId));
+        });
+    }
+
+    private boolean link(Long userId, Long friendId) {
+        Roaring64Bitmap userFriends = friends.computeIfAbsent(userId, id -> new Roaring64Bitmap());
+        if (userFriends.contains(friendId)) {
+            return false;
+        }
+        userFriends.addLong(friendId);
+        followers.computeIfAbsent(friendId, id -> new Roaring64Bitmap()).addLong(userId);
+        return true;
+    }
+
+    private boolean unlink(Long userId, Long friendId) {
+        Roaring64Bitmap userFriends = friends.get(userId);
+        if (userFriends == null || !userFriends.contains(friendId)) {
+            return false;
+        }
+        userFriends.removeLong(friendId);
+        if (userFriends.isEmpty()) {
+            friends.remove(userId);
+        }
+        Roaring64Bitmap friendFollowers = followers.get(friendId);
+        friendFollowers.removeLong(userId);
+        if (friendFollowers.isEmpty()) {
+            followers.remove(friendId);
+        }
+        return true;
+    }
+
+    private void linkLocked(Long userId, Long friendId) {
+        lock.writeLock().lock();
+        try {
+            link(userId, friendId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean unlinkLocked(Long userId, Long friendId) {
+        lock.writeLock().lock();
+        try {
+            return unlink(userId, friendId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static List<Long> toList(Roaring64Bitmap ids) {
+        List<Long> list = new ArrayList<>();
+        if (ids != null) {
+            ids.forEach(list::add);
+        }
+        return list;
+    }
+
+    private void onRollback(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_ROLLED_BACK) {
+                    action.run();
+                }
+            }
+        });
+    }
+}
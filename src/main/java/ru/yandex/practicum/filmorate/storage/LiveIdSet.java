@@ -0,0 +1,111 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// ID существующих записей для проверки существования без запроса к базе.
+// Изменения видны сразу, а при откате транзакции, в которой они сделаны, отменяются.
+public class LiveIdSet {
+    private final Roaring64Bitmap ids = new Roaring64Bitmap();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void reset(Collection<Long> liveIds) {
+        lock.writeLock().lock();
+        try {
+            ids.clear();
+            for (Long id : liveIds) {
+                ids.addLong(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(Long id) {
+        lock.readLock().lock();
+        try {
+            return ids.contains(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ID из списка, которых нет среди существующих
+    public List<Long> missing(Collection<Long> idsToCheck) {
+        List<Long> missing = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (Long id : idsToCheck) {
+                if (!ids.contains(id)) {
+                    missing.add(id);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return missing;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ids.getIntCardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void add(Long id) {
+        addNow(id);
+        onRollback(() -> removeNow(id));
+    }
+
+    public void remove(Long id) {
+        if (removeNow(id)) {
+            onRollback(() -> addNow(id));
+        }
+    }
+
+    private void addNow(Long id) {
+        lock.writeLock().lock();
+        try {
+            ids.addLong(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean removeNow(Long id) {
+        lock.writeLock().lock();
+        try {
+            if (!ids.contains(id)) {
+                return false;
+            }
+            ids.removeLong(id);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void onRollback(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_ROLLED_BACK) {
+                    action.run();
+                }
+            }
+        });
+    }
+}
@@ -2,12 +2,16 @@ package ru.yandex.practicum.filmorate.storage.director;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.annotation.Caching;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.stereotype.Repository;
+import ru.yandex.practicum.filmorate.config.CacheConfig;
 import ru.yandex.practicum.filmorate.model.Director;
 import ru.yandex.practicum.filmorate.model.Film;
 
@@ -24,6 +28,7 @@ public class DirectorDbStorage implements DirectorStorage {
     private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
 
     @Override
+    @CacheEvict(cacheNames = CacheConfig.DIRECTORS, key = "'all'")
     public Director createDirector(Director director) {
         SimpleJdbcInsert simpleJdbcInsert = new SimpleJdbcInsert(jdbcTemplate)
                 .withTableName("DIRECTOR")
@@ -35,6 +40,10 @@ public class DirectorDbStorage implements DirectorStorage {
     }
 
     @Override
+    @Caching(evict = {
+            @CacheEvict(cacheNames = CacheConfig.DIRECTORS, allEntries = true),
+            @CacheEvict(cacheNames = CacheConfig.FILMS, allEntries = true) // имя режиссёра хранится в фильмах
+    })
     public Director updateDirector(Director director) {
         String sqlQuery = "UPDATE director SET DIRECTOR_NAME = ? WHERE DIRECTOR_ID = ?";
         if (jdbcTemplate.update(sqlQuery, director.getName(), director.getId()) != 0) {
@@ -45,17 +54,23 @@ public class DirectorDbStorage implements DirectorStorage {
     }
 
     @Override
+    @Caching(evict = {
+            @CacheEvict(cacheNames = CacheConfig.DIRECTORS, allEntries = true),
+            @CacheEvict(cacheNames = CacheConfig.FILMS, allEntries = true)
+    })
     public boolean deleteDirector(Integer id) {
         return jdbcTemplate.update("DELETE FROM director WHERE DIRECTOR_ID = ? ", id) > 0;
     }
 
     @Override
+    @Cacheable(cacheNames = CacheConfig.DIRECTORS, key = "'all'")
     public Collection<Director> findAll() {
         String sql = "SELECT * FROM director";
         return jdbcTemplate.query(sql, this::mapRowToDirector);
     }
 
     @Override
+    @Cacheable(cacheNames = CacheConfig.DIRECTORS, unless = "#result == null")
     public Director getDirector(Integer id) {
         Director director = null;
         String sql = "SELECT * FROM DIRECTOR WHERE DIRECTOR_ID = ?";
@@ -67,6 +82,7 @@ public class DirectorDbStorage implements DirectorStorage {
     }
 
     @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, key = "#film.id")
     public void addFilmDirectors(Film film) {
         Set<Director> directors = new LinkedHashSet<>(film.getDirectors());
         String sql = "INSERT INTO FILM_DIRECTOR (FILM_ID, DIRECTOR_ID) VALUES (?, ?);";
@@ -79,6 +95,7 @@ public class DirectorDbStorage implements DirectorStorage {
     }
 
     @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, key = "#filmId")
     public void deleteDirectorsFromFilm(Long filmId) {
         jdbcTemplate.update("DELETE FROM FILM_DIRECTOR WHERE FILM_ID = ?", filmId);
     }
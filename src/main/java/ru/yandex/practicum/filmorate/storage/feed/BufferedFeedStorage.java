@@ -0,0 +1,202 @@
+package ru.yandex.practicum.filmorate.storage.feed;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.yandex.practicum.filmorate.model.EventType;
+import ru.yandex.practicum.filmorate.model.Feed;
+import ru.yandex.practicum.filmorate.model.Operation;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Лента событий с асинхронной записью: события копятся в ограниченной очереди,
+// отдельный поток пишет их в FEED пакетами раз в flush-interval или по набору batch-size.
+// Если очередь заполнена, накопленное пишет поток, который добавляет событие.
+// Перед чтением ленты и при остановке приложения очередь сбрасывается в базу.
+// О записанных событиях сообщается через FeedRecordedEvent.
+@Repository("bufferedFeedStorage")
+@Slf4j
+public class BufferedFeedStorage implements FeedStorage {
+    private final FeedStorage feedStorage;
+    private final ApplicationEventPublisher eventPublisher;
+    private final boolean async;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final BlockingQueue<Feed> queue;
+    private final ReentrantLock writeLock = new ReentrantLock(); // пакеты пишутся по одному, чтобы не путать порядок
+    private volatile boolean running;
+    private Thread writer;
+
+    @Autowired
+    public BufferedFeedStorage(@Qualifier("feedDbStorage") FeedStorage feedStorage,
+                               ApplicationEventPublisher eventPublisher,
+                               @Value("${filmorate.feed.async.enabled:true}") boolean async,
+                               @Value("${filmorate.feed.async.capacity:10000}") int capacity,
+                               @Value("${filmorate.feed.async.batch-size:500}") int batchSize,
+                               @Value("${filmorate.feed.async.flush-interval-ms:200}") long flushIntervalMs) {
+        this.feedStorage = feedStorage;
+        this.eventPublisher = eventPublisher;
+        this.async = async;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!async) {
+            log.info("Асинхронная запись ленты событий выключена.");
+            return;
+        }
+        running = true;
+        writer = new Thread(this::runWriter, "feed-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(TimeUnit.SECONDS.toMillis(10));
+        flush();
+        log.info("Запись ленты событий остановлена, очередь сброшена в базу.");
+    }
+
+    @Override
+    public List<Feed> getFeedByUserId(Long id) {
+        flush();
+        return feedStorage.getFeedByUserId(id);
+    }
+
+    @Override
+    public List<Feed> getFeedByUserId(Long id, Long afterId, Instant since, Instant before, Integer limit) {
+        flush();
+        return feedStorage.getFeedByUserId(id, afterId, since, before, limit);
+    }
+
+    @Override
+    public List<Feed> getFeedByUserIds(Collection<Long> userIds, Long beforeEventId, int limit) {
+        flush();
+        return feedStorage.getFeedByUserIds(userIds, beforeEventId, limit);
+    }
+
+    @Override
+    public int archiveFeedBefore(Instant cutoff) {
+        flush();
+        return feedStorage.archiveFeedBefore(cutoff);
+    }
+
+    @Override
+    public void addFeed(Long entityId, Long userId, EventType eventType, Operation operation) {
+        Feed feed = new Feed();
+        feed.setEntityId(entityId);
+        feed.setUserId(userId);
+        feed.setTimestamp(System.currentTimeMillis());
+        feed.setEventType(eventType);
+        feed.setOperation(operation);
+        addFeeds(List.of(feed));
+    }
+
+    @Override
+    public void addFeeds(List<Feed> feeds) {
+        for (Feed feed : feeds) {
+            if (feed.getTimestamp() == null) {
+                feed.setTimestamp(System.currentTimeMillis());
+            }
+        }
+        if (!async) {
+            feedStorage.addFeeds(feeds);
+            eventPublisher.publishEvent(new FeedRecordedEvent(feeds));
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            enqueue(feeds);
+            return;
+        }
+        // событие попадает в ленту только вместе с изменением, которое его породило
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                enqueue(feeds);
+            }
+        });
+    }
+
+    // записывает в базу всё, что накопилось в очереди
+    public void flush() {
+        writeLock.lock();
+        try {
+            List<Feed> batch = new ArrayList<>(batchSize);
+            while (queue.drainTo(batch, batchSize) > 0) {
+                write(batch);
+                batch.clear();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void enqueue(List<Feed> feeds) {
+        for (Feed feed : feeds) {
+            while (!queue.offer(feed)) {
+                flush();
+            }
+        }
+        if (queue.size() >= batchSize) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void runWriter() {
+        while (running) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushIntervalMs));
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                log.error("Не удалось записать события ленты.", e);
+            }
+        }
+    }
+
+    private void write(List<Feed> batch) {
+        List<Feed> written = new ArrayList<>(batch);
+        try {
+            feedStorage.addFeeds(written);
+        } catch (DataAccessException e) {
+            // например, автор события уже удалён: пишем по одному и пропускаем только ошибочные
+            log.warn("Пакет из {} событий ленты не записан, пишем по одному.", batch.size());
+            written.clear();
+            for (Feed feed : batch) {
+                try {
+                    feedStorage.addFeeds(List.of(feed));
+                    written.add(feed);
+                } catch (DataAccessException ex) {
+                    log.error("Событие ленты {} не записано: {}", feed, ex.getMessage());
+                }
+            }
+        }
+        if (!written.isEmpty()) {
+            eventPublisher.publishEvent(new FeedRecordedEvent(written));
+        }
+    }
+}
@@ -1,21 +1,32 @@
 package ru.yandex.practicum.filmorate.storage.feed;
 
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import ru.yandex.practicum.filmorate.model.Feed;
 import ru.yandex.practicum.filmorate.model.EventType;
 import ru.yandex.practicum.filmorate.model.Operation;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 @Repository("feedDbStorage")
 public class FeedDbStorage implements FeedStorage {
     private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
 
-    public FeedDbStorage(JdbcTemplate jdbcTemplate) {
+    public FeedDbStorage(JdbcTemplate jdbcTemplate, NamedParameterJdbcTemplate namedParameterJdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = namedParameterJdbcTemplate;
     }
 
     @Override
@@ -24,12 +35,89 @@ public class FeedDbStorage implements FeedStorage {
         return jdbcTemplate.query(sql, (rs, rowNum) -> mapRowToFeed(rs), id);
     }
 
+    @Override
+    public List<Feed> getFeedByUserId(Long id, Long afterId, Instant since, Instant before, Integer limit) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM FEED WHERE USER_ID = :userId");
+        MapSqlParameterSource parameters = new MapSqlParameterSource("userId", id);
+        if (afterId != null) {
+            sql.append(" AND EVENT_ID > :afterId");
+            parameters.addValue("afterId", afterId);
+        }
+        if (since != null) {
+            sql.append(" AND CREATED_TS >= :since");
+            parameters.addValue("since", Timestamp.from(since));
+        }
+        if (before != null) {
+            sql.append(" AND CREATED_TS < :before");
+            parameters.addValue("before", Timestamp.from(before));
+        }
+        sql.append(" ORDER BY EVENT_ID");
+        if (limit != null) {
+            sql.append(" LIMIT :limit");
+            parameters.addValue("limit", limit);
+        }
+        return namedParameterJdbcTemplate.query(sql.toString(), parameters, (rs, rowNum) -> mapRowToFeed(rs));
+    }
+
+    @Override
+    public List<Feed> getFeedByUserIds(Collection<Long> userIds, Long beforeEventId, int limit) {
+        if (userIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        MapSqlParameterSource parameters = new MapSqlParameterSource("userIds", userIds)
+                .addValue("before", beforeEventId == null ? Long.MAX_VALUE : beforeEventId)
+                .addValue("limit", limit);
+        String sql = "SELECT * FROM FEED WHERE USER_ID IN (:userIds) AND EVENT_ID < :before " +
+                "ORDER BY EVENT_ID DESC LIMIT :limit";
+        return namedParameterJdbcTemplate.query(sql, parameters, (rs, rowNum) -> mapRowToFeed(rs));
+    }
+
+    @Override
+    @Transactional
+    public int archiveFeedBefore(Instant cutoff) {
+        Timestamp timestamp = Timestamp.from(cutoff);
+        jdbcTemplate.update("INSERT INTO FEED_ARCHIVE (EVENT_ID, ENTITY_ID, USER_ID, CREATED_TS, EVENT_TYPE, OPERATION)\n" +
+                "SELECT EVENT_ID, ENTITY_ID, USER_ID, CREATED_TS, EVENT_TYPE, OPERATION FROM FEED " +
+                "WHERE CREATED_TS < ?", timestamp);
+        return jdbcTemplate.update("DELETE FROM FEED WHERE CREATED_TS < ?", timestamp);
+    }
+
     @Override
     public void addFeed(Long entityId, Long userId, EventType eventType, Operation operation) {
         String sql = "INSERT INTO FEED(ENTITY_ID, USER_ID, EVENT_TYPE, OPERATION) VALUES ( ?, ?, ?, ?);";
         jdbcTemplate.update(sql, entityId, userId, eventType.toString(), operation.toString());
     }
 
+    @Override
+    @Transactional // пакет записывается целиком или не записывается вовсе
+    public void addFeeds(List<Feed> feeds) {
+        String sql = "INSERT INTO FEED(ENTITY_ID, USER_ID, CREATED_TS, EVENT_TYPE, OPERATION) VALUES ( ?, ?, ?, ?, ?);";
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            try (PreparedStatement ps = connection.prepareStatement(sql, new String[]{"EVENT_ID"})) {
+                for (Feed feed : feeds) {
+                    ps.setLong(1, feed.getEntityId());
+                    ps.setLong(2, feed.getUserId());
+                    // время события, а не записи: при отложенной записи они расходятся
+                    ps.setTimestamp(3, new Timestamp(feed.getTimestamp() == null
+                            ? System.currentTimeMillis() : feed.getTimestamp()));
+                    ps.setString(4, feed.getEventType().toString());
+                    ps.setString(5, feed.getOperation().toString());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                // ID событий нужны для раскладки по лентам друзей
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    for (Feed feed : feeds) {
+                        if (keys.next()) {
+                            feed.setEventId(keys.getLong(1));
+                        }
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
     private Feed mapRowToFeed(ResultSet rs) throws SQLException {
         Feed feed = new Feed();
         feed.setEventId(rs.getLong("EVENT_ID"));
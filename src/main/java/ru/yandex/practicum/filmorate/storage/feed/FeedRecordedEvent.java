@@ -0,0 +1,14 @@
+package ru.yandex.practicum.filmorate.storage.feed;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ru.yandex.practicum.filmorate.model.Feed;
+
+import java.util.List;
+
+// события, записанные в FEED и уже получившие EVENT_ID
+@Getter
+@AllArgsConstructor
+public class FeedRecordedEvent {
+    private final List<Feed> feeds;
+}
@@ -4,11 +4,24 @@ import ru.yandex.practicum.filmorate.model.Feed;
 import ru.yandex.practicum.filmorate.model.EventType;
 import ru.yandex.practicum.filmorate.model.Operation;
 
+import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 
 public interface FeedStorage {
     List<Feed> getFeedByUserId(Long id);
 
+    // события по возрастанию EVENT_ID: после события afterId, в интервале [since, before), не больше limit
+    List<Feed> getFeedByUserId(Long id, Long afterId, Instant since, Instant before, Integer limit);
+
+    // события нескольких пользователей, от новых к старым, с EVENT_ID меньше beforeEventId
+    List<Feed> getFeedByUserIds(Collection<Long> userIds, Long beforeEventId, int limit);
+
     void addFeed(Long entityId, Long userId, EventType eventType, Operation operation);
+
+    void addFeeds(List<Feed> feeds);
+
+    // переносит в FEED_ARCHIVE события старше cutoff, возвращает их количество
+    int archiveFeedBefore(Instant cutoff);
 }
 
@@ -0,0 +1,86 @@
+package ru.yandex.practicum.filmorate.storage.feed;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru.yandex.practicum.filmorate.model.EventType;
+import ru.yandex.practicum.filmorate.model.Feed;
+import ru.yandex.practicum.filmorate.model.Operation;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+@Repository("timelineDbStorage")
+public class TimelineDbStorage implements TimelineStorage {
+    private static final int TRIM_BATCH_SIZE = 500;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public TimelineDbStorage(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public void addEvent(Collection<Long> ownerIds, Long eventId) {
+        String sql = "MERGE INTO TIMELINE (OWNER_ID, EVENT_ID) KEY (OWNER_ID, EVENT_ID) VALUES (?, ?)";
+        List<Long> owners = new ArrayList<>(ownerIds);
+        jdbcTemplate.batchUpdate(sql, owners, owners.size(), (PreparedStatement ps, Long ownerId) -> {
+            ps.setLong(1, ownerId);
+            ps.setLong(2, eventId);
+        });
+    }
+
+    @Override
+    public List<Feed> getTimeline(Long ownerId, Long beforeEventId, int limit) {
+        // события тех, кого уже удалили из друзей, не показываем
+        String sql = "SELECT F.* FROM TIMELINE AS T JOIN FEED AS F ON F.EVENT_ID = T.EVENT_ID " +
+                "JOIN FRIENDS AS FR ON FR.USER_ID = T.OWNER_ID AND FR.FRIEND_ID = F.USER_ID " +
+                "WHERE T.OWNER_ID = ? AND T.EVENT_ID < ? ORDER BY T.EVENT_ID DESC LIMIT ?";
+        return jdbcTemplate.query(sql, (rs, rowNum) -> mapRowToFeed(rs), ownerId,
+                beforeEventId == null ? Long.MAX_VALUE : beforeEventId, limit);
+    }
+
+    // ленты чистятся по одной: граница считается по индексу ленты один раз, удаление идёт пакетами владельцев,
+    // и каждый пакет фиксируется сам, не держа блокировку всей TIMELINE до конца чистки
+    @Override
+    public int trim(int maxSize) {
+        List<Long> owners = jdbcTemplate.queryForList(
+                "SELECT OWNER_ID FROM TIMELINE GROUP BY OWNER_ID HAVING COUNT(*) > ?", Long.class, maxSize);
+        int removed = 0;
+        for (int from = 0; from < owners.size(); from += TRIM_BATCH_SIZE) {
+            List<long[]> cutoffs = new ArrayList<>();
+            for (Long ownerId : owners.subList(from, Math.min(from + TRIM_BATCH_SIZE, owners.size()))) {
+                List<Long> cutoff = jdbcTemplate.queryForList("SELECT EVENT_ID FROM TIMELINE WHERE OWNER_ID = ? " +
+                        "ORDER BY EVENT_ID DESC LIMIT 1 OFFSET ?", Long.class, ownerId, maxSize);
+                if (!cutoff.isEmpty()) {
+                    cutoffs.add(new long[]{ownerId, cutoff.get(0)});
+                }
+            }
+            int[][] counts = jdbcTemplate.batchUpdate("DELETE FROM TIMELINE WHERE OWNER_ID = ? AND EVENT_ID <= ?",
+                    cutoffs, cutoffs.size(), (PreparedStatement ps, long[] cutoff) -> {
+                        ps.setLong(1, cutoff[0]);
+                        ps.setLong(2, cutoff[1]);
+                    });
+            for (int[] batch : counts) {
+                for (int count : batch) {
+                    removed += count;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private Feed mapRowToFeed(ResultSet rs) throws SQLException {
+        Feed feed = new Feed();
+        feed.setEventId(rs.getLong("EVENT_ID"));
+        feed.setEntityId(rs.getLong("ENTITY_ID"));
+        feed.setUserId(rs.getLong("USER_ID"));
+        feed.setTimestamp(rs.getTimestamp("CREATED_TS").toInstant().toEpochMilli());
+        feed.setEventType(EventType.valueOf(rs.getString("EVENT_TYPE")));
+        feed.setOperation(Operation.valueOf(rs.getString("OPERATION")));
+        return feed;
+    }
+}
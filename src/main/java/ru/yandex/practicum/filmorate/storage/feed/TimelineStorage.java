@@ -0,0 +1,17 @@
+package ru.yandex.practicum.filmorate.storage.feed;
+
+import ru.yandex.practicum.filmorate.model.Feed;
+
+import java.util.Collection;
+import java.util.List;
+
+// ленты "что делали друзья": ссылки на события FEED, разложенные по подписчикам при записи
+public interface TimelineStorage {
+    void addEvent(Collection<Long> ownerIds, Long eventId);
+
+    // события ленты от новых к старым с EVENT_ID меньше beforeEventId
+    List<Feed> getTimeline(Long ownerId, Long beforeEventId, int limit);
+
+    // оставляет в каждой ленте не больше maxSize последних событий
+    int trim(int maxSize);
+}
@@ -2,29 +2,107 @@ package ru.yandex.practicum.filmorate.storage.film;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.practicum.filmorate.config.CacheConfig;
+import ru.yandex.practicum.filmorate.model.Director;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmPopularity;
+import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeOperation;
+import ru.yandex.practicum.filmorate.model.LikesView;
 import ru.yandex.practicum.filmorate.model.Mpa;
+import ru.yandex.practicum.filmorate.model.Operation;
+import ru.yandex.practicum.filmorate.storage.LiveIdSet;
 
+import javax.annotation.PostConstruct;
+import java.sql.Array;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 @Repository("filmDbStorage")
 @Slf4j
 public class FilmDbStorage implements FilmStorage {
+    // жанры и режиссёры фильма F, собранные в массивы
+    private static final String FILM_LINK_ARRAYS =
+            "(SELECT ARRAY_AGG(G.GENRE_ID ORDER BY G.GENRE_ID) FROM FILM_GENRES AS FG\n" +
+            "    JOIN GENRES AS G ON G.GENRE_ID = FG.GENRE_ID WHERE FG.FILM_ID = F.FILM_ID) AS GENRE_IDS,\n" +
+            "(SELECT ARRAY_AGG(G.GENRE_NAME ORDER BY G.GENRE_ID) FROM FILM_GENRES AS FG\n" +
+            "    JOIN GENRES AS G ON G.GENRE_ID = FG.GENRE_ID WHERE FG.FILM_ID = F.FILM_ID) AS GENRE_NAMES,\n" +
+            "(SELECT ARRAY_AGG(D.DIRECTOR_ID ORDER BY D.DIRECTOR_ID) FROM FILM_DIRECTOR AS FD\n" +
+            "    JOIN DIRECTOR AS D ON D.DIRECTOR_ID = FD.DIRECTOR_ID WHERE FD.FILM_ID = F.FILM_ID) AS DIRECTOR_IDS,\n" +
+            "(SELECT ARRAY_AGG(D.DIRECTOR_NAME ORDER BY D.DIRECTOR_ID) FROM FILM_DIRECTOR AS FD\n" +
+            "    JOIN DIRECTOR AS D ON D.DIRECTOR_ID = FD.DIRECTOR_ID WHERE FD.FILM_ID = F.FILM_ID) AS DIRECTOR_NAMES";
+    // суммарная полезность отзывов о фильме F
+    private static final String REVIEWS_USEFUL_COLUMN =
+            "(SELECT COALESCE(SUM(R.USEFUL), 0) FROM REVIEWS AS R WHERE R.FILM_ID = F.FILM_ID) AS REVIEWS_USEFUL";
+    // фильм сразу с жанрами и режиссёрами: связанные данные собираются в массивы одним запросом
+    private static final String HYDRATED_FILM_COLUMNS = "SELECT F.*, MR.RATING_NAME,\n" + FILM_LINK_ARRAYS + ",\n" +
+            REVIEWS_USEFUL_COLUMN;
+    // ID лайкнувших пользователей нужны только в режиме LikesView.IDS
+    private static final String LIKE_IDS_COLUMN = ",\n(SELECT ARRAY_AGG(FL.USER_ID ORDER BY FL.USER_ID) " +
+            "FROM FILM_LIKES AS FL WHERE FL.FILM_ID = F.FILM_ID) AS LIKE_IDS";
+    private static final String LIKED_BY_ME_COLUMN = ",\nEXISTS (SELECT 1 FROM FILM_LIKES AS FL " +
+            "WHERE FL.FILM_ID = F.FILM_ID AND FL.USER_ID = :viewerId) AS LIKED_BY_ME";
+    private static final String HYDRATED_FILM_FROM = "\nFROM FILMS AS F\n" +
+            "LEFT JOIN MPA_RATINGS MR ON MR.RATING_ID = F.RATING_ID\n";
+    // та же строка фильма из готовой проекции FILM_VIEW
+    private static final String FILM_VIEW_COLUMNS = "SELECT F.*";
+    private static final String FILM_VIEW_FROM = "\nFROM FILM_VIEW AS F\n";
+    private static final String FILM_VIEW_PROJECTION = "SELECT F.FILM_ID, F.FILM_NAME, F.DESCRIPTION, " +
+            "F.RELEASE_DATE, F.DURATION, F.RATING_ID, MR.RATING_NAME, F.LIKES_COUNT,\n" + FILM_LINK_ARRAYS + ",\n" +
+            REVIEWS_USEFUL_COLUMN + HYDRATED_FILM_FROM;
+    private static final String FILM_VIEW_MERGE = "MERGE INTO FILM_VIEW (FILM_ID, FILM_NAME, DESCRIPTION, " +
+            "RELEASE_DATE, DURATION, RATING_ID, RATING_NAME, LIKES_COUNT, GENRE_IDS, GENRE_NAMES, DIRECTOR_IDS, " +
+            "DIRECTOR_NAMES, REVIEWS_USEFUL) KEY (FILM_ID)\n" + FILM_VIEW_PROJECTION;
+
+    private static final String LIKE_MERGE_SQL = "MERGE INTO FILM_LIKES AS FL\n" +
+            "USING (VALUES (CAST(? AS BIGINT), CAST(? AS BIGINT))) AS S (FILM_ID, USER_ID)\n" +
+            "ON FL.FILM_ID = S.FILM_ID AND FL.USER_ID = S.USER_ID\n" +
+            "WHEN NOT MATCHED THEN INSERT (FILM_ID, USER_ID) VALUES (S.FILM_ID, S.USER_ID)";
+
+    private static final int STREAM_FETCH_SIZE = 500;
+    private static final int LIKE_BATCH_SIZE = 500;
+
     private final JdbcTemplate jdbcTemplate;
     private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+    private final NamedParameterJdbcTemplate streamingJdbcTemplate;
+    private final LiveIdSet filmIds = new LiveIdSet();
+    private final boolean viewEnabled;
 
     @Autowired
-    public FilmDbStorage(JdbcTemplate jdbcTemplate, NamedParameterJdbcTemplate namedParameterJdbcTemplate) {
+    public FilmDbStorage(JdbcTemplate jdbcTemplate, NamedParameterJdbcTemplate namedParameterJdbcTemplate,
+                         @Value("${filmorate.films.view.enabled:true}") boolean viewEnabled) {
         this.jdbcTemplate = jdbcTemplate;
         this.namedParameterJdbcTemplate = namedParameterJdbcTemplate;
+        this.viewEnabled = viewEnabled;
+        // строки отдаются порциями по мере чтения, а не собираются в список целиком
+        JdbcTemplate streamingTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        streamingTemplate.setFetchSize(STREAM_FETCH_SIZE);
+        this.streamingJdbcTemplate = new NamedParameterJdbcTemplate(streamingTemplate);
+    }
+
+    @PostConstruct
+    public void loadFilmIds() {
+        filmIds.reset(jdbcTemplate.queryForList("SELECT FILM_ID FROM FILMS", Long.class));
+        log.info("Загружены ID фильмов: {}.", filmIds.size());
+        if (viewEnabled) {
+            repairFilmView(); // до первых чтений, которые пойдут из FILM_VIEW
+        }
     }
 
     @Override
@@ -47,24 +125,152 @@ public class FilmDbStorage implements FilmStorage {
         return film;
     }
 
+    @Override
+    public boolean existsFilm(Long id) {
+        return filmIds.contains(id);
+    }
+
+    @Override
+    public List<Long> findMissingFilms(Collection<Long> ids) {
+        return filmIds.missing(ids);
+    }
+
+    @Override
+    @Cacheable(cacheNames = CacheConfig.FILMS, unless = "#result == null")
+    public Film getHydratedFilm(Long id) {
+        List<Film> films = getHydratedFilmsByIds(List.of(id), LikesView.IDS, null);
+        return films.isEmpty() ? null : films.get(0);
+    }
+
+    @Override
+    public List<Film> getFilmsByIds(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String sql = "SELECT * FROM FILMS \n" +
+                "LEFT JOIN MPA_RATINGS MR on MR.RATING_ID = FILMS.RATING_ID\n" +
+                "WHERE FILM_ID IN (:ids);";
+        SqlParameterSource parameters = new MapSqlParameterSource("ids", ids);
+        return orderByIds(namedParameterJdbcTemplate.query(sql, parameters, this::mapRowToFilm), ids);
+    }
+
+    @Override
+    public Collection<Film> findAllHydrated(LikesView likesView, Long viewerId) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource("viewerId", viewerId);
+        return namedParameterJdbcTemplate.query(hydratedSelect(likesView, viewerId) + "ORDER BY F.FILM_ID",
+                parameters, (rs, rowNum) -> mapRowToHydratedFilm(rs, likesView, viewerId));
+    }
+
+    @Override
+    public List<Film> getHydratedFilmsByIds(List<Long> ids, LikesView likesView, Long viewerId) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        MapSqlParameterSource parameters = new MapSqlParameterSource("ids", ids)
+                .addValue("viewerId", viewerId);
+        List<Film> films = namedParameterJdbcTemplate.query(
+                hydratedSelect(likesView, viewerId) + "WHERE F.FILM_ID IN (:ids)",
+                parameters, (rs, rowNum) -> mapRowToHydratedFilm(rs, likesView, viewerId));
+        return orderByIds(films, ids);
+    }
+
+    @Override
+    public List<Film> getHydratedFilmsPage(Long afterId, int limit, LikesView likesView, Long viewerId) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource("afterId", afterId == null ? 0 : afterId)
+                .addValue("limit", limit)
+                .addValue("viewerId", viewerId);
+        return namedParameterJdbcTemplate.query(hydratedSelect(likesView, viewerId) +
+                        "WHERE F.FILM_ID > :afterId ORDER BY F.FILM_ID LIMIT :limit",
+                parameters, (rs, rowNum) -> mapRowToHydratedFilm(rs, likesView, viewerId));
+    }
+
+    @Override
+    public void streamAllHydrated(LikesView likesView, Long viewerId, Consumer<Film> consumer) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource("viewerId", viewerId);
+        streamingJdbcTemplate.query(hydratedSelect(likesView, viewerId) + "ORDER BY F.FILM_ID", parameters, rs -> {
+            consumer.accept(mapRowToHydratedFilm(rs, likesView, viewerId));
+        });
+    }
+
+    private String hydratedSelect(LikesView likesView, Long viewerId) {
+        StringBuilder sql = new StringBuilder(viewEnabled ? FILM_VIEW_COLUMNS : HYDRATED_FILM_COLUMNS);
+        if (likesView == LikesView.IDS) {
+            sql.append(LIKE_IDS_COLUMN);
+        }
+        if (viewerId != null) {
+            sql.append(LIKED_BY_ME_COLUMN);
+        }
+        return sql.append(viewEnabled ? FILM_VIEW_FROM : HYDRATED_FILM_FROM).toString();
+    }
+
+    @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, allEntries = true)
+    public void refreshFilmView(Collection<Long> ids) {
+        if (!viewEnabled || ids.isEmpty()) {
+            return;
+        }
+        namedParameterJdbcTemplate.update(FILM_VIEW_MERGE + "WHERE F.FILM_ID IN (:ids)",
+                new MapSqlParameterSource("ids", ids));
+    }
+
+    @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, key = "#filmId")
+    public void refreshFilmViewByReview(Long filmId) {
+        if (!viewEnabled) {
+            return;
+        }
+        jdbcTemplate.update("UPDATE FILM_VIEW AS V SET REVIEWS_USEFUL = " +
+                "(SELECT COALESCE(SUM(R.USEFUL), 0) FROM REVIEWS AS R WHERE R.FILM_ID = V.FILM_ID)\n" +
+                "WHERE V.FILM_ID = ?", filmId);
+    }
+
+    @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, allEntries = true)
+    public int repairFilmView() {
+        if (!viewEnabled) {
+            return 0;
+        }
+        String sql = "SELECT P.FILM_ID FROM (" + FILM_VIEW_PROJECTION + ") AS P\n" +
+                "LEFT JOIN FILM_VIEW AS V ON V.FILM_ID = P.FILM_ID\n" +
+                "WHERE V.FILM_ID IS NULL\n" +
+                "OR V.FILM_NAME IS DISTINCT FROM P.FILM_NAME OR V.DESCRIPTION IS DISTINCT FROM P.DESCRIPTION\n" +
+                "OR V.RELEASE_DATE IS DISTINCT FROM P.RELEASE_DATE OR V.DURATION IS DISTINCT FROM P.DURATION\n" +
+                "OR V.RATING_ID IS DISTINCT FROM P.RATING_ID OR V.RATING_NAME IS DISTINCT FROM P.RATING_NAME\n" +
+                "OR V.LIKES_COUNT IS DISTINCT FROM P.LIKES_COUNT\n" +
+                "OR V.GENRE_IDS IS DISTINCT FROM P.GENRE_IDS OR V.GENRE_NAMES IS DISTINCT FROM P.GENRE_NAMES\n" +
+                "OR V.DIRECTOR_IDS IS DISTINCT FROM P.DIRECTOR_IDS\n" +
+                "OR V.DIRECTOR_NAMES IS DISTINCT FROM P.DIRECTOR_NAMES\n" +
+                "OR V.REVIEWS_USEFUL IS DISTINCT FROM P.REVIEWS_USEFUL";
+        List<Long> divergent = jdbcTemplate.queryForList(sql, Long.class);
+        for (int from = 0; from < divergent.size(); from += LIKE_BATCH_SIZE) {
+            refreshFilmView(divergent.subList(from, Math.min(from + LIKE_BATCH_SIZE, divergent.size())));
+        }
+        return divergent.size();
+    }
+
     @Override
     public Film createFilm(Film film) {
         SimpleJdbcInsert simpleJdbcInsert = new SimpleJdbcInsert(jdbcTemplate)
                 .withTableName("FILMS")
+                .usingColumns("FILM_NAME", "DESCRIPTION", "RELEASE_DATE", "DURATION", "RATING_ID")
                 .usingGeneratedKeyColumns("FILM_ID");
         Long id = simpleJdbcInsert.executeAndReturnKey(film.toMap()).longValue();
         film.setId(id);
+        filmIds.add(id);
+        refreshFilmView(List.of(id));
         log.info("Фильм с ID = {} успешно добавлен.", id);
         return film;
     }
 
     @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, key = "#film.id")
     public Film updateFilm(Film film) {
         String sqlQuery = "UPDATE films SET " +
                 "FILM_NAME = ?, DESCRIPTION = ?, RELEASE_DATE = ?, DURATION = ?, " +
                 "RATING_ID = ? WHERE FILM_ID = ?";
         if (jdbcTemplate.update(sqlQuery, film.getName(), film.getDescription(), film.getReleaseDate(),
                 film.getDuration(), film.getMpa().getId(), film.getId()) != 0) {
+            refreshFilmView(List.of(film.getId()));
             return film;
         } else {
             return null;
@@ -72,20 +278,115 @@ public class FilmDbStorage implements FilmStorage {
     }
 
     @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, key = "#id")
     public boolean deleteFilm(Long id) {
-        return jdbcTemplate.update("DELETE FROM FILMS WHERE FILM_ID = ? ", id) > 0;
+        if (jdbcTemplate.update("DELETE FROM FILMS WHERE FILM_ID = ? ", id) == 0) {
+            return false;
+        }
+        filmIds.remove(id);
+        return true;
     }
 
     @Override
-    public void addLike(Long filmId, Long userId) {
-        String sql = "MERGE INTO FILM_LIKES (FILM_ID, USER_ID) VALUES (?, ?)";
-        jdbcTemplate.update(sql, filmId, userId);
+    @Transactional
+    @CacheEvict(cacheNames = CacheConfig.FILMS, key = "#filmId")
+    public boolean addLike(Long filmId, Long userId) {
+        int inserted;
+        try {
+            inserted = jdbcTemplate.update(LIKE_MERGE_SQL, filmId, userId);
+        } catch (DuplicateKeyException e) {
+            inserted = 0; // такой же лайк параллельно поставили в другой транзакции
+        }
+        if (inserted == 0) {
+            return false;
+        }
+        jdbcTemplate.update("UPDATE FILMS SET LIKES_COUNT = LIKES_COUNT + 1 WHERE FILM_ID = ?", filmId);
+        if (viewEnabled) {
+            jdbcTemplate.update("UPDATE FILM_VIEW SET LIKES_COUNT = LIKES_COUNT + 1 WHERE FILM_ID = ?", filmId);
+        }
+        return true;
     }
 
     @Override
-    public void removeLike(Long filmId, Long userId) {
+    @Transactional
+    @CacheEvict(cacheNames = CacheConfig.FILMS, key = "#filmId")
+    public boolean removeLike(Long filmId, Long userId) {
         String sql = "DELETE FROM FILM_LIKES WHERE FILM_ID = ? AND USER_ID = ?";
-        jdbcTemplate.update(sql, filmId, userId);
+        if (jdbcTemplate.update(sql, filmId, userId) == 0) {
+            return false;
+        }
+        jdbcTemplate.update("UPDATE FILMS SET LIKES_COUNT = LIKES_COUNT - 1 WHERE FILM_ID = ?", filmId);
+        if (viewEnabled) {
+            jdbcTemplate.update("UPDATE FILM_VIEW SET LIKES_COUNT = LIKES_COUNT - 1 WHERE FILM_ID = ?", filmId);
+        }
+        return true;
+    }
+
+    @Override
+    @Transactional
+    @CacheEvict(cacheNames = CacheConfig.FILMS, allEntries = true)
+    public List<LikeOperation> applyLikes(List<LikeOperation> likes) {
+        List<LikeOperation> adds = new ArrayList<>();
+        List<LikeOperation> removes = new ArrayList<>();
+        for (LikeOperation like : likes) {
+            if (like.getOperation() == Operation.ADD) {
+                adds.add(like);
+            } else {
+                removes.add(like);
+            }
+        }
+        ParameterizedPreparedStatementSetter<LikeOperation> setter = (ps, like) -> {
+            ps.setLong(1, like.getFilmId());
+            ps.setLong(2, like.getUserId());
+        };
+        List<LikeOperation> applied = new ArrayList<>();
+        Map<Long, Long> deltas = new TreeMap<>(); // по возрастанию ID, чтобы строки FILMS блокировались в одном порядке
+        collectApplied(adds, jdbcTemplate.batchUpdate(LIKE_MERGE_SQL, adds, LIKE_BATCH_SIZE, setter),
+                1, applied, deltas);
+        collectApplied(removes, jdbcTemplate.batchUpdate("DELETE FROM FILM_LIKES WHERE FILM_ID = ? AND USER_ID = ?",
+                removes, LIKE_BATCH_SIZE, setter), -1, applied, deltas);
+        ParameterizedPreparedStatementSetter<Map.Entry<Long, Long>> deltaSetter = (ps, delta) -> {
+            ps.setLong(1, delta.getValue());
+            ps.setLong(2, delta.getKey());
+        };
+        jdbcTemplate.batchUpdate("UPDATE FILMS SET LIKES_COUNT = LIKES_COUNT + ? WHERE FILM_ID = ?",
+                new ArrayList<>(deltas.entrySet()), LIKE_BATCH_SIZE, deltaSetter);
+        if (viewEnabled) {
+            jdbcTemplate.batchUpdate("UPDATE FILM_VIEW SET LIKES_COUNT = LIKES_COUNT + ? WHERE FILM_ID = ?",
+                    new ArrayList<>(deltas.entrySet()), LIKE_BATCH_SIZE, deltaSetter);
+        }
+        log.info("Пакет лайков: получено {}, применено {}.", likes.size(), applied.size());
+        return applied;
+    }
+
+    // оставляет операции, которые действительно изменили строку, и суммирует изменения счётчиков по фильмам
+    private void collectApplied(List<LikeOperation> likes, int[][] counts, long delta,
+                                List<LikeOperation> applied, Map<Long, Long> deltas) {
+        int i = 0;
+        for (int[] batch : counts) {
+            for (int count : batch) {
+                LikeOperation like = likes.get(i++);
+                if (count > 0) {
+                    applied.add(like);
+                    deltas.merge(like.getFilmId(), delta, Long::sum);
+                }
+            }
+        }
+    }
+
+    @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, allEntries = true)
+    public int recalculateLikesCount() {
+        String sql = "UPDATE FILMS AS F SET LIKES_COUNT = " +
+                "(SELECT COUNT(*) FROM FILM_LIKES AS FL WHERE FL.FILM_ID = F.FILM_ID)\n" +
+                "WHERE LIKES_COUNT <> (SELECT COUNT(*) FROM FILM_LIKES AS FL WHERE FL.FILM_ID = F.FILM_ID)";
+        int repaired = jdbcTemplate.update(sql);
+        if (viewEnabled && repaired > 0) {
+            jdbcTemplate.update("UPDATE FILM_VIEW AS V SET LIKES_COUNT = " +
+                    "(SELECT F.LIKES_COUNT FROM FILMS AS F WHERE F.FILM_ID = V.FILM_ID)");
+        }
+        log.info("Пересчитано количество лайков у {} фильмов.", repaired);
+        return repaired;
     }
 
     @Override
@@ -115,55 +416,58 @@ public class FilmDbStorage implements FilmStorage {
         return likeMap;
     }
 
+    @Override
+    public Collection<FilmPopularity> getFilmPopularity() {
+        String sql = "SELECT F.FILM_ID, F.LIKES_COUNT, F.RELEASE_DATE, FG.GENRE_ID\n" +
+                "FROM FILMS AS F\n" +
+                "LEFT JOIN FILM_GENRES AS FG ON FG.FILM_ID = F.FILM_ID\n" +
+                "ORDER BY F.FILM_ID";
+        final Map<Long, FilmPopularity> popularityMap = new LinkedHashMap<>();
+
+        jdbcTemplate.query(sql, rs -> {
+            Long filmId = rs.getLong("FILM_ID");
+            FilmPopularity popularity = popularityMap.get(filmId);
+            if (popularity == null) {
+                popularity = new FilmPopularity(filmId, rs.getLong("LIKES_COUNT"),
+                        rs.getDate("RELEASE_DATE").toLocalDate(), new HashSet<>());
+                popularityMap.put(filmId, popularity);
+            }
+            int genreId = rs.getInt("GENRE_ID");
+            if (!rs.wasNull()) {
+                popularity.getGenreIds().add(genreId);
+            }
+        });
+        return popularityMap.values();
+    }
+
     @Override
     public List<Film> getTopNPopularFilms(Integer count, Integer genreId, Integer year) {
-        List<Film> filmsPopular;
+        StringBuilder sql = new StringBuilder("SELECT F.*, MR.RATING_NAME\n" +
+                "FROM FILMS AS F\n" +
+                "LEFT JOIN MPA_RATINGS MR on MR.RATING_ID = F.RATING_ID\n" +
+                "WHERE TRUE\n");
+        List<Object> params = new ArrayList<>();
+        if (genreId != null) {
+            sql.append("AND EXISTS (SELECT 1 FROM FILM_GENRES AS FG WHERE FG.FILM_ID = F.FILM_ID AND FG.GENRE_ID = ?)\n");
+            params.add(genreId);
+        }
+        if (year != null) {
+            // диапазон дат вместо YEAR(RELEASE_DATE), чтобы условие не мешало использовать индексы
+            sql.append("AND F.RELEASE_DATE >= ? AND F.RELEASE_DATE < ?\n");
+            params.add(LocalDate.ofYearDay(year, 1));
+            params.add(LocalDate.ofYearDay(year + 1, 1));
+        }
+        sql.append("ORDER BY F.LIKES_COUNT DESC, F.FILM_ID\n" +
+                "LIMIT ?;");
+        params.add(count);
+        List<Film> filmsPopular = jdbcTemplate.query(sql.toString(), this::mapRowToFilm, params.toArray());
         if (genreId != null && year != null) {
-            String sql = "SELECT F.*, MR.RATING_NAME, G.GENRE_NAME, COUNT(FL.USER_ID)\n" +
-                    "FROM FILMS AS F\n" +
-                    "LEFT JOIN FILM_LIKES AS FL ON FL.FILM_ID = F.FILM_ID\n" +
-                    "LEFT JOIN FILM_GENRES AS FG ON FG.FILM_ID = F.FILM_ID\n" +
-                    "LEFT JOIN GENRES AS G ON G.GENRE_ID = FG.GENRE_ID\n" +
-                    "LEFT JOIN MPA_RATINGS MR on MR.RATING_ID = F.RATING_ID\n" +
-                    "WHERE G.GENRE_ID = ? AND YEAR(RELEASE_DATE) = ?\n" +
-                    "GROUP BY F.FILM_ID\n" +
-                    "ORDER BY COUNT(FL.USER_ID) DESC\n" +
-                    "LIMIT ?;";
-            filmsPopular = jdbcTemplate.query(sql, this::mapRowToFilm, genreId, year, count);
             log.info("Популярные фильмы по жанру {}, году {} успешно получены", genreId, year);
         } else if (year != null) {
-            String sql = "SELECT F.*, MR.RATING_NAME, COUNT(FL.USER_ID)\n" +
-                    "FROM FILMS AS F\n" +
-                    "LEFT JOIN FILM_LIKES AS FL ON FL.FILM_ID = F.FILM_ID\n" +
-                    "LEFT JOIN MPA_RATINGS MR on MR.RATING_ID = F.RATING_ID\n" +
-                    "WHERE YEAR(RELEASE_DATE) = ?\n" +
-                    "GROUP BY F.FILM_ID\n" +
-                    "ORDER BY COUNT(FL.USER_ID) DESC\n" +
-                    "LIMIT ?;";
-            filmsPopular = jdbcTemplate.query(sql, this::mapRowToFilm, year, count);
             log.info("Популярные фильмы по году {} успешно получены", year);
         } else if (genreId != null) {
-            String sql = "SELECT F.*, MR.RATING_NAME, G.GENRE_NAME, COUNT(FL.USER_ID)\n" +
-                    "FROM FILMS AS F\n" +
-                    "LEFT JOIN FILM_LIKES AS FL ON FL.FILM_ID = F.FILM_ID\n" +
-                    "LEFT JOIN FILM_GENRES AS FG ON FG.FILM_ID = F.FILM_ID\n" +
-                    "LEFT JOIN GENRES AS G ON G.GENRE_ID = FG.GENRE_ID\n" +
-                    "LEFT JOIN MPA_RATINGS MR on MR.RATING_ID = F.RATING_ID\n" +
-                    "WHERE G.GENRE_ID = ?\n" +
-                    "GROUP BY F.FILM_ID\n" +
-                    "ORDER BY COUNT(FL.USER_ID) DESC\n" +
-                    "LIMIT ?;";
-            filmsPopular = jdbcTemplate.query(sql, this::mapRowToFilm, genreId, count);
             log.info("Популярные фильмы по жанру {} успешно получены", genreId);
         } else {
-            String sql = "SELECT F.*, MR.RATING_NAME,COUNT(FL.USER_ID)\n" +
-                    "FROM FILMS AS F\n" +
-                    "LEFT JOIN FILM_LIKES AS FL ON FL.FILM_ID = F.FILM_ID\n" +
-                    "LEFT JOIN MPA_RATINGS MR on MR.RATING_ID = F.RATING_ID\n" +
-                    "GROUP BY F.FILM_ID\n" +
-                    "ORDER BY COUNT(FL.USER_ID) DESC\n" +
-                    "LIMIT ?;";
-            filmsPopular = jdbcTemplate.query(sql, this::mapRowToFilm, count);
             log.info("Популярные фильмы успешно получены");
         }
         return filmsPopular;
@@ -173,10 +477,10 @@ public class FilmDbStorage implements FilmStorage {
     public List<Film> getFilmsByDirector(Integer directorId) {
         String sql = "SELECT F.*, MR.RATING_NAME, FD.DIRECTOR_ID, D.DIRECTOR_NAME \n" +
                 "FROM FILMS AS F \n" +
-                "LEFT JOIN FILM_DIRECTOR FD ON F.FILM_ID = FD.FILM_ID \n" +
-                "LEFT JOIN DIRECTOR D ON D.DIRECTOR_ID = FD.DIRECTOR_ID \n" +
+                "JOIN FILM_DIRECTOR FD ON F.FILM_ID = FD.FILM_ID \n" +
+                "JOIN DIRECTOR D ON D.DIRECTOR_ID = FD.DIRECTOR_ID \n" +
                 "LEFT JOIN MPA_RATINGS MR ON MR.RATING_ID = F.RATING_ID \n" +
-                "WHERE D.DIRECTOR_ID = ?;";
+                "WHERE FD.DIRECTOR_ID = ?;";
 
         return jdbcTemplate.query(sql, this::mapRowToFilm, directorId);
     }
@@ -185,10 +489,10 @@ public class FilmDbStorage implements FilmStorage {
     public List<Film> getFilmsDirectorSortByYear(Integer directorId) {
         String sql = "SELECT F.*, MR.RATING_NAME, FD.DIRECTOR_ID, D.DIRECTOR_NAME \n" +
                 "FROM FILMS AS F \n" +
-                "LEFT JOIN FILM_DIRECTOR FD ON F.FILM_ID = FD.FILM_ID \n" +
-                "LEFT JOIN DIRECTOR D ON D.DIRECTOR_ID = FD.DIRECTOR_ID \n" +
+                "JOIN FILM_DIRECTOR FD ON F.FILM_ID = FD.FILM_ID \n" +
+                "JOIN DIRECTOR D ON D.DIRECTOR_ID = FD.DIRECTOR_ID \n" +
                 "LEFT JOIN MPA_RATINGS MR ON MR.RATING_ID = F.RATING_ID \n" +
-                "WHERE D.DIRECTOR_ID = ?\n" +
+                "WHERE FD.DIRECTOR_ID = ?\n" +
                 "ORDER BY YEAR(F.RELEASE_DATE);";
 
         return jdbcTemplate.query(sql, this::mapRowToFilm, directorId);
@@ -196,15 +500,12 @@ public class FilmDbStorage implements FilmStorage {
 
     @Override
     public List<Film> getFilmsDirectorSortByLikes(Integer directorId) {
-        String sql = "SELECT F.*, MR.RATING_NAME, FD.DIRECTOR_ID, D.DIRECTOR_NAME, COUNT(FL.USER_ID) " +
+        // через IN, а не JOIN: иначе H2 обходит весь индекс FILMS_LIKES_COUNT_IDX ради порядка сортировки
+        String sql = "SELECT F.*, MR.RATING_NAME " +
                 "FROM FILMS AS F " +
-                "LEFT JOIN FILM_LIKES FL ON F.FILM_ID = FL.FILM_ID " +
-                "LEFT JOIN FILM_DIRECTOR FD ON F.FILM_ID = FD.FILM_ID " +
-                "LEFT JOIN DIRECTOR D ON D.DIRECTOR_ID = FD.DIRECTOR_ID " +
                 "LEFT JOIN MPA_RATINGS MR ON MR.RATING_ID = F.RATING_ID " +
-                "WHERE D.DIRECTOR_ID = ? " +
-                "GROUP BY F.FILM_ID " +
-                "ORDER BY COUNT(FL.USER_ID) DESC;";
+                "WHERE F.FILM_ID IN (SELECT FILM_ID FROM FILM_DIRECTOR WHERE DIRECTOR_ID = ?) " +
+                "ORDER BY F.LIKES_COUNT DESC, F.FILM_ID;";
 
         return jdbcTemplate.query(sql, this::mapRowToFilm, directorId);
     }
@@ -214,37 +515,33 @@ public class FilmDbStorage implements FilmStorage {
         String textQuerySQL = "%" + textQuery + "%";
         if (searchParams.contains("title") && searchParams.contains("director")) {
             String sql = "SELECT F.*, MR.RATING_NAME, FD.DIRECTOR_ID,\n" +
-                    "D.DIRECTOR_NAME, COUNT(FL.USER_ID)\n" +
+                    "D.DIRECTOR_NAME\n" +
                     "FROM FILMS AS F\n" +
-                    "LEFT JOIN FILM_LIKES FL ON F.FILM_ID = FL.FILM_ID\n" +
                     "LEFT JOIN FILM_DIRECTOR FD ON F.FILM_ID = FD.FILM_ID\n" +
                     "LEFT JOIN DIRECTOR D ON D.DIRECTOR_ID = FD.DIRECTOR_ID\n" +
                     "LEFT JOIN MPA_RATINGS MR ON MR.RATING_ID = F.RATING_ID\n" +
                     "WHERE LOWER(F.FILM_NAME) LIKE LOWER(?) OR LOWER(D.DIRECTOR_NAME) LIKE LOWER(?)\n" +
                     "GROUP BY F.FILM_ID\n" +
-                    "ORDER BY COUNT(FL.USER_ID) DESC;";
+                    "ORDER BY F.LIKES_COUNT DESC;";
             return jdbcTemplate.query(sql, this::mapRowToFilm,
                     textQuerySQL, textQuerySQL);
         } else if (searchParams.contains("director")) {
             String sql = "SELECT F.*, MR.RATING_NAME, FD.DIRECTOR_ID,\n" +
-                    "D.DIRECTOR_NAME, COUNT(FL.USER_ID)\n" +
+                    "D.DIRECTOR_NAME\n" +
                     "FROM FILMS AS F\n" +
-                    "LEFT JOIN FILM_LIKES FL ON F.FILM_ID = FL.FILM_ID\n" +
                     "LEFT JOIN FILM_DIRECTOR FD ON F.FILM_ID = FD.FILM_ID\n" +
                     "LEFT JOIN DIRECTOR D ON D.DIRECTOR_ID = FD.DIRECTOR_ID\n" +
                     "LEFT JOIN MPA_RATINGS MR ON MR.RATING_ID = F.RATING_ID\n" +
                     "WHERE LOWER(D.DIRECTOR_NAME) LIKE LOWER(?)\n" +
                     "GROUP BY F.FILM_ID\n" +
-                    "ORDER BY COUNT(FL.USER_ID) DESC;";
+                    "ORDER BY F.LIKES_COUNT DESC;";
             return jdbcTemplate.query(sql, this::mapRowToFilm, textQuerySQL);
         } else if (searchParams.contains("title")) {
-            String sql = "SELECT F.*, MR.RATING_NAME, COUNT(FL.USER_ID)\n" +
+            String sql = "SELECT F.*, MR.RATING_NAME\n" +
                     "FROM FILMS AS F\n" +
-                    "LEFT JOIN FILM_LIKES FL ON F.FILM_ID = FL.FILM_ID\n" +
                     "LEFT JOIN MPA_RATINGS MR ON MR.RATING_ID = F.RATING_ID\n" +
                     "WHERE LOWER(F.FILM_NAME) LIKE LOWER(?)\n" +
-                    "GROUP BY F.FILM_ID\n" +
-                    "ORDER BY COUNT(FL.USER_ID);";
+                    "ORDER BY F.LIKES_COUNT;";
             return jdbcTemplate.query(sql, this::mapRowToFilm, textQuerySQL);
         } else {
             return null;
@@ -252,27 +549,99 @@ public class FilmDbStorage implements FilmStorage {
     }
 
     @Override
-    public Map<Long, Set<Film>> getLikesFilms() {
-        String sqlUserIds = "SELECT USER_ID FROM USERS";
-        List<Long> ids = jdbcTemplate.query(sqlUserIds, (rs, rowNum) -> rs.getLong("USER_ID"));
-        String sql = "SELECT FL.USER_ID, F.*, MR.RATING_NAME FROM FILMS AS F" +
-                " LEFT JOIN FILM_LIKES FL ON F.FILM_ID = FL.FILM_ID" +
-                " LEFT JOIN MPA_RATINGS MR ON F.RATING_ID = MR.RATING_ID " +
-                " WHERE FL.USER_ID IN(:ids)" +
-                " ORDER BY FL.USER_ID, F.FILM_ID;";
-        SqlParameterSource parameters = new MapSqlParameterSource("ids", ids);
-        final Map<Long, Set<Film>> userFilmsMap = new HashMap<>();
+    public void initFullTextSearch() {
+        Integer indexes = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM FT.INDEXES\n" +
+                "WHERE SCHEMA = 'PUBLIC' AND \"TABLE\" IN ('FILMS', 'DIRECTOR')", Integer.class);
+        if (indexes != null && indexes == 2) {
+            jdbcTemplate.execute("CALL FT_REINDEX()");
+        } else {
+            jdbcTemplate.execute("CALL FT_DROP_INDEX('PUBLIC', 'FILMS')");
+            jdbcTemplate.execute("CALL FT_DROP_INDEX('PUBLIC', 'DIRECTOR')");
+            jdbcTemplate.execute("CALL FT_CREATE_INDEX('PUBLIC', 'FILMS', 'FILM_NAME')");
+            jdbcTemplate.execute("CALL FT_CREATE_INDEX('PUBLIC', 'DIRECTOR', 'DIRECTOR_NAME')");
+        }
+        log.info("Полнотекстовые индексы фильмов и режиссёров готовы.");
+    }
 
-        namedParameterJdbcTemplate.query(sql, parameters, rs -> {
-            Long userId = rs.getLong("USER_ID");
-            Film film = mapRowToFilm(rs, 0);
-            String mpaName = rs.getString("RATING_NAME");
-            film.setMpa(new Mpa(rs.getInt("RATING_ID"), mpaName));
-            Set<Film> films = userFilmsMap.getOrDefault(userId, new HashSet<>());
-            films.add(film);
-            userFilmsMap.put(userId, films);
+    @Override
+    public List<Long> searchFilmIdsByFullText(String textQuery, List<String> searchParams) {
+        List<String> sources = new ArrayList<>();
+        if (searchParams.contains("title")) {
+            sources.add("SELECT CAST(FT.KEYS[1] AS BIGINT) AS FILM_ID\n" +
+                    "FROM FT_SEARCH_DATA(:query, 0, 0) AS FT WHERE FT.\"TABLE\" = 'FILMS'");
+        }
+        if (searchParams.contains("director")) {
+            sources.add("SELECT FD.FILM_ID\n" +
+                    "FROM FT_SEARCH_DATA(:query, 0, 0) AS FT\n" +
+                    "JOIN FILM_DIRECTOR FD ON FD.DIRECTOR_ID = CAST(FT.KEYS[1] AS BIGINT)\n" +
+                    "WHERE FT.\"TABLE\" = 'DIRECTOR'");
+        }
+        if (sources.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // порядок по лайкам тот же, что и у поиска через LIKE
+        String order = searchParams.contains("director") ? "DESC" : "ASC";
+        String sql = "SELECT F.FILM_ID FROM (" + String.join("\nUNION\n", sources) + ") AS S\n" +
+                "JOIN FILMS AS F ON F.FILM_ID = S.FILM_ID\n" +
+                "ORDER BY F.LIKES_COUNT " + order + ", F.FILM_ID";
+        return namedParameterJdbcTemplate.queryForList(sql, new MapSqlParameterSource("query", textQuery),
+                Long.class);
+    }
+
+    @Override
+    public void forEachLike(BiConsumer<Long, Long> consumer) {
+        String sql = "SELECT USER_ID, FILM_ID FROM FILM_LIKES";
+        jdbcTemplate.query(sql, rs -> {
+            consumer.accept(rs.getLong("USER_ID"), rs.getLong("FILM_ID"));
         });
-        return userFilmsMap;
+    }
+
+    // сохраняет порядок переданных идентификаторов, отсутствующие в базе пропускаются
+    private List<Film> orderByIds(List<Film> films, List<Long> ids) {
+        Map<Long, Film> filmMap = new HashMap<>();
+        for (Film film : films) {
+            filmMap.put(film.getId(), film);
+        }
+        List<Film> result = new ArrayList<>();
+        for (Long id : ids) {
+            Film film = filmMap.get(id);
+            if (film != null) {
+                result.add(film);
+            }
+        }
+        return result;
+    }
+
+    private Film mapRowToHydratedFilm(ResultSet rs, LikesView likesView, Long viewerId) throws SQLException {
+        Film film = mapRowToFilm(rs, 0);
+        film.setReviewsUseful(rs.getLong("REVIEWS_USEFUL"));
+        Object[] genreIds = toArray(rs.getArray("GENRE_IDS"));
+        Object[] genreNames = toArray(rs.getArray("GENRE_NAMES"));
+        Set<Genre> genres = new LinkedHashSet<>(); // жанры по возрастанию ID
+        for (int i = 0; i < genreIds.length; i++) {
+            genres.add(new Genre(((Number) genreIds[i]).intValue(), (String) genreNames[i]));
+        }
+        film.setGenres(genres);
+        Object[] directorIds = toArray(rs.getArray("DIRECTOR_IDS"));
+        Object[] directorNames = toArray(rs.getArray("DIRECTOR_NAMES"));
+        for (int i = 0; i < directorIds.length; i++) {
+            film.getDirectors().add(new Director(((Number) directorIds[i]).intValue(), (String) directorNames[i]));
+        }
+        if (likesView == LikesView.IDS) {
+            for (Object likeId : toArray(rs.getArray("LIKE_IDS"))) {
+                film.getLikes().add(((Number) likeId).longValue());
+            }
+        } else {
+            film.setLikes(null); // в режиме LikesView.COUNT список лайков не загружается и не отдаётся
+        }
+        if (viewerId != null) {
+            film.setLikedByMe(rs.getBoolean("LIKED_BY_ME"));
+        }
+        return film;
+    }
+
+    private static Object[] toArray(Array array) throws SQLException {
+        return array == null ? new Object[0] : (Object[]) array.getArray();
     }
 
     private Film mapRowToFilm(ResultSet rs, int rowNum) throws SQLException {
@@ -282,6 +651,7 @@ public class FilmDbStorage implements FilmStorage {
         film.setDescription(rs.getString("DESCRIPTION"));
         film.setReleaseDate(rs.getDate("RELEASE_DATE").toLocalDate());
         film.setDuration(rs.getInt("DURATION"));
+        film.setLikesCount(rs.getLong("LIKES_COUNT"));
         film.setMpa(new Mpa(rs.getInt("RATING_ID"), rs.getString("RATING_NAME")));
         return film;
     }
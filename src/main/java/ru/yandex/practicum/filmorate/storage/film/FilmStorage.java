@@ -1,11 +1,16 @@
 package ru.yandex.practicum.filmorate.storage.film;
 
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmPopularity;
+import ru.yandex.practicum.filmorate.model.LikeOperation;
+import ru.yandex.practicum.filmorate.model.LikesView;
 
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public interface FilmStorage {
 
@@ -13,15 +18,36 @@ public interface FilmStorage {
 
     Film getFilm(Long id);
 
+    boolean existsFilm(Long id);
+
+    List<Long> findMissingFilms(Collection<Long> ids);
+
+    Film getHydratedFilm(Long id);
+
+    List<Film> getFilmsByIds(List<Long> ids);
+
+    Collection<Film> findAllHydrated(LikesView likesView, Long viewerId);
+
+    List<Film> getHydratedFilmsByIds(List<Long> ids, LikesView likesView, Long viewerId);
+
+    List<Film> getHydratedFilmsPage(Long afterId, int limit, LikesView likesView, Long viewerId);
+
+    void streamAllHydrated(LikesView likesView, Long viewerId, Consumer<Film> consumer);
+
     Film createFilm(Film film);
 
     Film updateFilm(Film film);
 
     boolean deleteFilm(Long id);
 
-    void addLike(Long filmId, Long userId);
+    boolean addLike(Long filmId, Long userId);
 
-    void removeLike(Long filmId, Long userId);
+    boolean removeLike(Long filmId, Long userId);
+
+    // применяет лайки пакетом в одной транзакции и возвращает операции, которые что-то изменили
+    List<LikeOperation> applyLikes(List<LikeOperation> likes);
+
+    int recalculateLikesCount();
 
     List<Film> getCommonFilms(Long userId, Long friendId);
 
@@ -35,7 +61,24 @@ public interface FilmStorage {
 
     List<Film> searchFilmsByNameOrDirector(String textQuery, List<String> searchParams);
 
+    // пересобирает строки проекции FILM_VIEW по нормализованным таблицам
+    void refreshFilmView(Collection<Long> filmIds);
+
+    // пересчитывает в FILM_VIEW полезность отзывов фильма
+    void refreshFilmViewByReview(Long filmId);
+
+    // находит строки FILM_VIEW, разошедшиеся с нормализованными таблицами, и пересобирает их
+    int repairFilmView();
+
+    // создаёт полнотекстовые индексы по названиям фильмов и именам режиссёров или перестраивает существующие
+    void initFullTextSearch();
+
+    // ID фильмов, в названии или у режиссёра которых есть все слова запроса
+    List<Long> searchFilmIdsByFullText(String textQuery, List<String> searchParams);
+
     List<Film> getTopNPopularFilms(Integer count, Integer genreId, Integer year);
 
-    Map<Long, Set<Film>> getLikesFilms();
+    Collection<FilmPopularity> getFilmPopularity();
+
+    void forEachLike(BiConsumer<Long, Long> consumer);
 }
@@ -1,10 +1,13 @@
 package ru.yandex.practicum.filmorate.storage.genre;
 
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.stereotype.Repository;
+import ru.yandex.practicum.filmorate.config.CacheConfig;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
 
@@ -24,12 +27,14 @@ public class GenreDbStorage implements GenreStorage {
     }
 
     @Override
+    @Cacheable(cacheNames = CacheConfig.GENRES, key = "'all'")
     public Collection<Genre> findAll() {
         String sql = "SELECT * FROM GENRES ORDER BY GENRE_ID";
         return jdbcTemplate.query(sql, this::mapRowToGenre);
     }
 
     @Override
+    @Cacheable(cacheNames = CacheConfig.GENRES, unless = "#result == null")
     public Genre getGenre(Integer id) {
         Genre genre = null;
         String sql = "SELECT * FROM GENRES WHERE GENRE_ID = ? ORDER BY GENRE_ID";
@@ -41,6 +46,7 @@ public class GenreDbStorage implements GenreStorage {
     }
 
     @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, key = "#film.id")
     // новый метод, добавляет сразу все жанры
     public void addFilmGenres(Film film) {
         Set<Genre> genres = new LinkedHashSet<>(film.getGenres());
@@ -54,6 +60,7 @@ public class GenreDbStorage implements GenreStorage {
     }
 
     @Override
+    @CacheEvict(cacheNames = CacheConfig.FILMS, key = "#filmId")
     public void deleteGenresFromFilm(Long filmId) {
         jdbcTemplate.update("DELETE FROM FILM_GENRES WHERE FILM_ID = ?", filmId);
     }
@@ -1,8 +1,10 @@
 package ru.yandex.practicum.filmorate.storage.mpa;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Repository;
+import ru.yandex.practicum.filmorate.config.CacheConfig;
 import ru.yandex.practicum.filmorate.model.Mpa;
 
 import java.sql.ResultSet;
@@ -20,12 +22,14 @@ public class MpaDbStorage implements MpaStorage {
     }
 
     @Override
+    @Cacheable(cacheNames = CacheConfig.MPA, key = "'all'")
     public Collection<Mpa> findAll() {
         String sql = "SELECT * FROM MPA_RATINGS";
         return jdbcTemplate.query(sql, this::mapRowToMpa);
     }
 
     @Override
+    @Cacheable(cacheNames = CacheConfig.MPA, unless = "#result == null")
     public Mpa getMpa(Integer id) {
         Mpa mpa = null;
         List<Mpa> mpaList = jdbcTemplate.query("SELECT * FROM MPA_RATINGS WHERE RATING_ID = ?",
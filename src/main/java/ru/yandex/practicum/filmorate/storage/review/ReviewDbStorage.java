@@ -3,19 +3,24 @@ package ru.yandex.practicum.filmorate.storage.review;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import ru.yandex.practicum.filmorate.model.Review;
+import ru.yandex.practicum.filmorate.model.ReviewVote;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.List;
+import java.util.*;
 
 @Repository("reviewDbStorage")
 @Slf4j
 public class ReviewDbStorage implements ReviewStorage {
 
+    private static final int VOTE_BATCH_SIZE = 500;
+
     private final JdbcTemplate jdbcTemplate;
     private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
 
@@ -29,55 +34,74 @@ public class ReviewDbStorage implements ReviewStorage {
     public Review createReview(Review review) {
         SimpleJdbcInsert simpleJdbcInsert = new SimpleJdbcInsert(jdbcTemplate)
                 .withTableName("REVIEWS")
+                .usingColumns("CONTENT", "IS_POSITIVE", "USER_ID", "FILM_ID")
                 .usingGeneratedKeyColumns("REVIEW_ID");
         Long id = simpleJdbcInsert.executeAndReturnKey(review.toMap()).longValue();
         review.setReviewId(id);
+        review.setUseful(0L);
         log.info("Отзыв с ID = {} успешно добавлен.", id);
         return review;
     }
 
     @Override
     public List<Review> getTopNReviews(Long count) {
-        String getPopularQuery = "SELECT REVIEWS.*, COALESCE(SUM(LIKE_RATING),0) as USEFUL "
-                + "FROM REVIEWS "
-                + "LEFT JOIN REVIEW_LIKES L ON REVIEWS.REVIEW_ID = L.REVIEW_ID "
-                + "GROUP BY REVIEWS.REVIEW_ID "
-                + "ORDER BY USEFUL DESC "
-                + "LIMIT ?";
-        return jdbcTemplate.query(getPopularQuery, this::mapRowToReview, count);
+        return getReviewsPage(null, null, null, count);
     }
 
     @Override
     public List<Review> getTopNReviewsByFilmId(Long filmId, Long count) {
-        String getPopularQuery = "SELECT REVIEWS.*, COALESCE(SUM(LIKE_RATING),0) as USEFUL "
-                + "FROM REVIEWS "
-                + "LEFT JOIN REVIEW_LIKES L ON REVIEWS.REVIEW_ID = L.REVIEW_ID "
-                + "WHERE REVIEWS.FILM_ID = ? "
-                + "GROUP BY REVIEWS.REVIEW_ID "
-                + "ORDER BY USEFUL DESC "
-                + "LIMIT ?";
-        return jdbcTemplate.query(getPopularQuery, this::mapRowToReview, filmId, count);
+        return getReviewsPage(filmId, null, null, count);
+    }
+
+    @Override
+    public List<Review> getReviewsPage(Long filmId, Long afterUseful, Long afterId, Long count) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM REVIEWS WHERE TRUE\n");
+        List<Object> params = new ArrayList<>();
+        if (filmId != null) {
+            sql.append("AND FILM_ID = ?\n");
+            params.add(filmId);
+        }
+        if (afterUseful != null) {
+            // USEFUL <= ? задаёт начало диапазона в индексе, OR отсекает уже выданные отзывы с той же полезностью
+            sql.append("AND USEFUL <= ? AND (USEFUL < ? OR REVIEW_ID > ?)\n");
+            params.add(afterUseful);
+            params.add(afterUseful);
+            params.add(afterId);
+        }
+        sql.append("ORDER BY USEFUL DESC, REVIEW_ID\nLIMIT ?");
+        params.add(count);
+        return jdbcTemplate.query(sql.toString(), this::mapRowToReview, params.toArray());
     }
 
     @Override
     public Review getReview(Long reviewId) {
         Review review = null;
-        String sql = "SELECT REVIEWS.*, SUM(LIKE_RATING) as USEFUL "
-                + "FROM REVIEWS "
-                + "LEFT JOIN REVIEW_LIKES L ON REVIEWS.REVIEW_ID = L.REVIEW_ID "
-                + "WHERE REVIEWS.REVIEW_ID = ? "
-                + "GROUP BY REVIEWS.REVIEW_ID ";
-        List<Review> reviewList = jdbcTemplate.query(sql, this::mapRowToReview, reviewId);
+        List<Review> reviewList = jdbcTemplate.query("SELECT * FROM REVIEWS WHERE REVIEW_ID = ?",
+                this::mapRowToReview, reviewId);
         if (reviewList.size() != 0) {
             review = reviewList.get(0);
         }
         return review;
     }
 
+    @Override
+    public Map<Long, Long> getFilmIdsByReviewIds(Collection<Long> reviewIds) {
+        Map<Long, Long> filmIds = new HashMap<>();
+        if (reviewIds.isEmpty()) {
+            return filmIds;
+        }
+        namedParameterJdbcTemplate.query("SELECT REVIEW_ID, FILM_ID FROM REVIEWS WHERE REVIEW_ID IN (:ids)",
+                new MapSqlParameterSource("ids", reviewIds),
+                rs -> {
+                    filmIds.put(rs.getLong("REVIEW_ID"), rs.getLong("FILM_ID"));
+                });
+        return filmIds;
+    }
+
     @Override
     public Review updateReview(Review review) {
         String sqlQuery = "UPDATE REVIEWS "
-                + "SET CONTENT = ?, IS_POSITIVE = ? WHERE FILM_ID = ?";
+                + "SET CONTENT = ?, IS_POSITIVE = ? WHERE REVIEW_ID = ?";
         if (jdbcTemplate.update(sqlQuery,
                 review.getContent(),
                 review.getIsPositive(),
@@ -89,15 +113,21 @@ public class ReviewDbStorage implements ReviewStorage {
     }
 
     @Override
+    @Transactional
     public void addLike(Long reviewId, Long userId) {
+        lockReviews(List.of(reviewId));
         String sql = "INSERT INTO REVIEW_LIKES (REVIEW_ID, USER_ID, LIKE_RATING) VALUES (?, ?, 1)";
         jdbcTemplate.update(sql, reviewId, userId);
+        changeUseful(reviewId, 1);
     }
 
     @Override
+    @Transactional
     public void addDislike(Long reviewId, Long userId) {
+        lockReviews(List.of(reviewId));
         String sql = "INSERT INTO REVIEW_LIKES (REVIEW_ID, USER_ID, LIKE_RATING) VALUES (?, ?, -1)";
         jdbcTemplate.update(sql, reviewId, userId);
+        changeUseful(reviewId, -1);
     }
 
     @Override
@@ -108,21 +138,92 @@ public class ReviewDbStorage implements ReviewStorage {
     }
 
     @Override
+    @Transactional
     public void removeLike(Long reviewId, Long userId) {
+        lockReviews(List.of(reviewId));
         if (jdbcTemplate.update("DELETE FROM REVIEW_LIKES WHERE REVIEW_ID = ? AND USER_ID = ? AND LIKE_RATING > 0",
                 reviewId, userId) > 0) {
+            changeUseful(reviewId, -1);
             log.info("Лайк отзыву с ID={} от пользователя с ID={} успешно удален", reviewId, userId);
         }
     }
 
     @Override
+    @Transactional
     public void removeDislike(Long reviewId, Long userId) {
+        lockReviews(List.of(reviewId));
         if (jdbcTemplate.update("DELETE FROM REVIEW_LIKES WHERE REVIEW_ID = ? AND USER_ID = ? AND LIKE_RATING < 0",
                 reviewId, userId) > 0) {
+            changeUseful(reviewId, 1);
             log.info("Дизлайу отзыву с ID={} от пользователя с ID={} успешно удален", reviewId, userId);
         }
     }
 
+    @Override
+    @Transactional
+    public List<ReviewVote> applyVotes(List<ReviewVote> votes) {
+        if (votes.isEmpty()) {
+            return List.of();
+        }
+        Set<Long> reviewIds = new HashSet<>();
+        Set<Long> userIds = new HashSet<>();
+        for (ReviewVote vote : votes) {
+            reviewIds.add(vote.getReviewId());
+            userIds.add(vote.getUserId());
+        }
+        // после блокировки отзывов их оценки не меняются параллельно, и прочитанные старые оценки остаются верными
+        lockReviews(reviewIds);
+        Map<List<Long>, Integer> oldRatings = new HashMap<>();
+        namedParameterJdbcTemplate.query("SELECT REVIEW_ID, USER_ID, LIKE_RATING FROM REVIEW_LIKES " +
+                        "WHERE REVIEW_ID IN (:reviewIds) AND USER_ID IN (:userIds)",
+                new MapSqlParameterSource("reviewIds", reviewIds).addValue("userIds", userIds),
+                rs -> {
+                    oldRatings.put(List.of(rs.getLong("REVIEW_ID"), rs.getLong("USER_ID")), rs.getInt("LIKE_RATING"));
+                });
+        List<ReviewVote> changed = new ArrayList<>();
+        List<ReviewVote> upserts = new ArrayList<>();
+        List<ReviewVote> removals = new ArrayList<>();
+        Map<Long, Long> deltas = new TreeMap<>();
+        for (ReviewVote vote : votes) {
+            int oldRating = oldRatings.getOrDefault(List.of(vote.getReviewId(), vote.getUserId()), 0);
+            if (oldRating == vote.getRating()) {
+                continue;
+            }
+            changed.add(vote);
+            (vote.getRating() == 0 ? removals : upserts).add(vote);
+            deltas.merge(vote.getReviewId(), (long) vote.getRating() - oldRating, Long::sum);
+        }
+        jdbcTemplate.batchUpdate("MERGE INTO REVIEW_LIKES (REVIEW_ID, USER_ID, LIKE_RATING) KEY (REVIEW_ID, USER_ID) " +
+                "VALUES (?, ?, ?)", upserts, VOTE_BATCH_SIZE, (ps, vote) -> {
+                    ps.setLong(1, vote.getReviewId());
+                    ps.setLong(2, vote.getUserId());
+                    ps.setInt(3, vote.getRating());
+                });
+        jdbcTemplate.batchUpdate("DELETE FROM REVIEW_LIKES WHERE REVIEW_ID = ? AND USER_ID = ?",
+                removals, VOTE_BATCH_SIZE, (ps, vote) -> {
+                    ps.setLong(1, vote.getReviewId());
+                    ps.setLong(2, vote.getUserId());
+                });
+        jdbcTemplate.batchUpdate("UPDATE REVIEWS SET USEFUL = USEFUL + ? WHERE REVIEW_ID = ?",
+                new ArrayList<>(deltas.entrySet()), VOTE_BATCH_SIZE, (ps, delta) -> {
+                    ps.setLong(1, delta.getValue());
+                    ps.setLong(2, delta.getKey());
+                });
+        log.info("Пакет оценок отзывов: получено {}, изменено {}.", votes.size(), changed.size());
+        return changed;
+    }
+
+    // оценки отзыва меняются только под блокировкой его строки; блокировки берутся по возрастанию ID
+    private void lockReviews(Collection<Long> reviewIds) {
+        namedParameterJdbcTemplate.queryForList("SELECT REVIEW_ID FROM REVIEWS WHERE REVIEW_ID IN (:ids) " +
+                "ORDER BY REVIEW_ID FOR UPDATE", new MapSqlParameterSource("ids", reviewIds), Long.class);
+    }
+
+    // USEFUL меняется в той же транзакции, что и оценка, поэтому всегда равен сумме LIKE_RATING
+    private void changeUseful(Long reviewId, int delta) {
+        jdbcTemplate.update("UPDATE REVIEWS SET USEFUL = USEFUL + ? WHERE REVIEW_ID = ?", delta, reviewId);
+    }
+
     private Review mapRowToReview(ResultSet rs, int rowNum) throws SQLException {
         Review review = new Review();
         review.setReviewId(rs.getLong("REVIEW_ID"));
@@ -1,8 +1,11 @@
 package ru.yandex.practicum.filmorate.storage.review;
 
 import ru.yandex.practicum.filmorate.model.Review;
+import ru.yandex.practicum.filmorate.model.ReviewVote;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface ReviewStorage {
 
@@ -12,8 +15,15 @@ public interface ReviewStorage {
 
     List<Review> getTopNReviewsByFilmId(Long filmId, Long count);
 
+    // отзывы по убыванию полезности, а при равной полезности по возрастанию ID, после отзыва (afterUseful, afterId);
+    // filmId и курсор могут быть null
+    List<Review> getReviewsPage(Long filmId, Long afterUseful, Long afterId, Long count);
+
     Review getReview(Long reviewId);
 
+    // ID фильмов существующих отзывов из списка
+    Map<Long, Long> getFilmIdsByReviewIds(Collection<Long> reviewIds);
+
     Review updateReview(Review review);
 
     void addLike(Long reviewId, Long userId);
@@ -25,4 +35,7 @@ public interface ReviewStorage {
     void removeLike(Long reviewId, Long userId);
 
     void removeDislike(Long reviewId, Long userId);
+
+    // записывает оценки пакетом и возвращает те, что изменили сохранённую оценку
+    List<ReviewVote> applyVotes(List<ReviewVote> votes);
 }
@@ -2,24 +2,67 @@ package ru.yandex.practicum.filmorate.storage.user;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.annotation.Caching;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.practicum.filmorate.config.CacheConfig;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.FriendGraph;
+import ru.yandex.practicum.filmorate.storage.LiveIdSet;
 
+import javax.annotation.PostConstruct;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 @Repository("userDbStorage")
 @Slf4j
 public class UserDbStorage implements UserStorage {
+    private static final int STREAM_FETCH_SIZE = 500;
+
     private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+    private final JdbcTemplate streamingJdbcTemplate;
+    private final Cache userCache;
+    private final LiveIdSet userIds = new LiveIdSet();
+    private final FriendGraph friendGraph = new FriendGraph();
 
     @Autowired
-    public UserDbStorage(JdbcTemplate jdbcTemplate) {
+    public UserDbStorage(JdbcTemplate jdbcTemplate, NamedParameterJdbcTemplate namedParameterJdbcTemplate,
+                         CacheManager cacheManager) {
         this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = namedParameterJdbcTemplate;
+        this.userCache = cacheManager.getCache(CacheConfig.USERS);
+        // строки отдаются порциями по мере чтения, а не собираются в список целиком
+        this.streamingJdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.streamingJdbcTemplate.setFetchSize(STREAM_FETCH_SIZE);
+    }
+
+    @PostConstruct
+    public void loadUserIds() {
+        userIds.reset(jdbcTemplate.queryForList("SELECT USER_ID FROM USERS", Long.class));
+        log.info("Загружены ID пользователей: {}.", userIds.size());
+    }
+
+    @PostConstruct
+    public void loadFriendGraph() {
+        friendGraph.reset(link -> streamingJdbcTemplate.query("SELECT USER_ID, FRIEND_ID FROM FRIENDS",
+                rs -> {
+                    link.accept(rs.getLong("USER_ID"), rs.getLong("FRIEND_ID"));
+                }));
+        log.info("Загружен граф дружбы.");
     }
 
     @Override
@@ -29,6 +72,20 @@ public class UserDbStorage implements UserStorage {
     }
 
     @Override
+    public List<User> findPage(Long afterId, int limit) {
+        String sql = "SELECT * FROM USERS WHERE USER_ID > ? ORDER BY USER_ID LIMIT ?";
+        return jdbcTemplate.query(sql, this::mapRowToUser, afterId == null ? 0 : afterId, limit);
+    }
+
+    @Override
+    public void streamAll(Consumer<User> consumer) {
+        streamingJdbcTemplate.query("SELECT * FROM USERS ORDER BY USER_ID", rs -> {
+            consumer.accept(mapRowToUser(rs, 0));
+        });
+    }
+
+    @Override
+    @Cacheable(cacheNames = CacheConfig.USERS, unless = "#result == null")
     public User getUser(Long id) {
         User user = null;
         String sql = "SELECT * FROM USERS WHERE USER_ID = ?";
@@ -39,6 +96,16 @@ public class UserDbStorage implements UserStorage {
         return user;
     }
 
+    @Override
+    public boolean existsUser(Long id) {
+        return userIds.contains(id);
+    }
+
+    @Override
+    public List<Long> findMissingUsers(Collection<Long> ids) {
+        return userIds.missing(ids);
+    }
+
     @Override
     public User createUser(User user) {
         SimpleJdbcInsert simpleJdbcInsert = new SimpleJdbcInsert(jdbcTemplate)
@@ -46,11 +113,13 @@ public class UserDbStorage implements UserStorage {
                 .usingGeneratedKeyColumns("USER_ID");
         Long id = simpleJdbcInsert.executeAndReturnKey(user.toMap()).longValue();
         user.setId(id);
+        userIds.add(id);
         log.info("Пользователь с ID = {} успешно добавлен.", id);
         return user;
     }
 
     @Override
+    @CacheEvict(cacheNames = CacheConfig.USERS, key = "#user.id")
     public User updateUser(User user) {
         String sqlQuery = "UPDATE USERS SET EMAIL = ?, LOGIN = ?, NAME = ?, BIRTHDAY = ? WHERE USER_ID = ?";
         jdbcTemplate.update(sqlQuery,
@@ -64,57 +133,127 @@ public class UserDbStorage implements UserStorage {
     }
 
     @Override
+    @Transactional
+    @Caching(evict = {
+            @CacheEvict(cacheNames = CacheConfig.USERS, key = "#userId"),
+            @CacheEvict(cacheNames = CacheConfig.FILMS, allEntries = true), // вместе с пользователем удаляются его лайки
+            @CacheEvict(cacheNames = CacheConfig.REVIEWS, allEntries = true) // и его отзывы и оценки отзывов
+    })
     public void deleteUser(Long userId) {
+        // лайки пользователя удалятся каскадно, поэтому сначала уменьшаем счётчики лайков у фильмов
+        jdbcTemplate.update("UPDATE FILMS SET LIKES_COUNT = LIKES_COUNT - 1 " +
+                "WHERE FILM_ID IN (SELECT FILM_ID FROM FILM_LIKES WHERE USER_ID = ?)", userId);
+        jdbcTemplate.update("UPDATE FILM_VIEW SET LIKES_COUNT = LIKES_COUNT - 1 " +
+                "WHERE FILM_ID IN (SELECT FILM_ID FROM FILM_LIKES WHERE USER_ID = ?)", userId);
+        // и полезность отзывов, которые он оценивал
+        jdbcTemplate.update("UPDATE REVIEWS AS R SET USEFUL = USEFUL - (SELECT RL.LIKE_RATING FROM REVIEW_LIKES AS RL " +
+                "WHERE RL.REVIEW_ID = R.REVIEW_ID AND RL.USER_ID = ?) " +
+                "WHERE REVIEW_ID IN (SELECT REVIEW_ID FROM REVIEW_LIKES WHERE USER_ID = ?)", userId, userId);
+        // фильмы, у которых поменяется полезность отзывов: оценённые им отзывы и его собственные, удаляемые каскадно
+        List<Long> reviewedFilms = jdbcTemplate.queryForList("SELECT FILM_ID FROM REVIEWS WHERE USER_ID = ? UNION " +
+                "SELECT R.FILM_ID FROM REVIEW_LIKES AS RL JOIN REVIEWS AS R ON R.REVIEW_ID = RL.REVIEW_ID " +
+                "WHERE RL.USER_ID = ?", Long.class, userId, userId);
         if (jdbcTemplate.update("DELETE FROM USERS WHERE USER_ID = ? ", userId) > 0) {
+            userIds.remove(userId);
+            friendGraph.removeUser(userId); // заявки в друзья удалились каскадно
+            if (!reviewedFilms.isEmpty()) {
+                namedParameterJdbcTemplate.update("UPDATE FILM_VIEW AS V SET REVIEWS_USEFUL = " +
+                        "(SELECT COALESCE(SUM(R.USEFUL), 0) FROM REVIEWS AS R WHERE R.FILM_ID = V.FILM_ID) " +
+                        "WHERE V.FILM_ID IN (:ids)", Map.of("ids", reviewedFilms));
+            }
             log.info("Пользователь с ID={} успешно удален", userId);
         }
     }
 
     @Override
+    @Transactional
     public void addFriend(Long userId, Long friendId) {
-        boolean status = false;
-        if (checkUserFriend(friendId, userId)) {
-            status = true;  // дружба стала взаимной
-            String sql = "UPDATE FRIENDS SET STATUS = ? WHERE USER_ID = ? AND FRIEND_ID = ?";
-            jdbcTemplate.update(sql, true, friendId, userId);
-        }
-        // добавлена заявка в друзья
-        String sql = "INSERT INTO FRIENDS (USER_ID, FRIEND_ID, STATUS) VALUES (?, ?, ?)";
-        jdbcTemplate.update(sql, userId, friendId, status);
+        lockUsers(userId, friendId);
+        // добавлена заявка в друзья, повторная ничего не меняет
+        String sql = "MERGE INTO FRIENDS AS F " +
+                "USING (VALUES (CAST(? AS BIGINT), CAST(? AS BIGINT))) AS N (USER_ID, FRIEND_ID) " +
+                "ON F.USER_ID = N.USER_ID AND F.FRIEND_ID = N.FRIEND_ID " +
+                "WHEN NOT MATCHED THEN INSERT (USER_ID, FRIEND_ID, STATUS) VALUES (N.USER_ID, N.FRIEND_ID, FALSE)";
+        jdbcTemplate.update(sql, userId, friendId);
+        // если встречная заявка уже есть, дружба стала взаимной - статус меняется у обеих
+        sql = "UPDATE FRIENDS AS F SET STATUS = TRUE " +
+                "WHERE F.USER_ID IN (?, ?) AND F.FRIEND_ID IN (?, ?) AND F.USER_ID <> F.FRIEND_ID AND F.STATUS = FALSE " +
+                "AND EXISTS (SELECT 1 FROM FRIENDS AS R WHERE R.USER_ID = F.FRIEND_ID AND R.FRIEND_ID = F.USER_ID)";
+        jdbcTemplate.update(sql, userId, friendId, userId, friendId);
+        friendGraph.add(userId, friendId);
     }
 
     @Override
+    @Transactional
     public void deleteFriend(Long userId, Long friendId) {
-        String sql = "DELETE FROM friends WHERE USER_ID = ? AND FRIEND_ID = ?";
+        lockUsers(userId, friendId);
+        String sql = "DELETE FROM FRIENDS WHERE USER_ID = ? AND FRIEND_ID = ?";
         jdbcTemplate.update(sql, userId, friendId);
-        if (checkUserFriend(friendId, userId)) {
-            // дружба стала невзаимной - нужно поменять статус
-            sql = "UPDATE FRIENDS SET STATUS = ? " +
-                    "WHERE USER_ID = ? AND FRIEND_ID = ?";
-            jdbcTemplate.update(sql, false, friendId, userId);
-        }
+        // дружба стала невзаимной - нужно поменять статус встречной заявки
+        sql = "UPDATE FRIENDS SET STATUS = FALSE WHERE USER_ID = ? AND FRIEND_ID = ? AND STATUS = TRUE";
+        jdbcTemplate.update(sql, friendId, userId);
+        friendGraph.remove(userId, friendId);
     }
 
     @Override
     public List<User> getUserFriendsById(Long userId) {
-        String sql = "SELECT FRIEND_ID, U.* FROM FRIENDS AS F" +
-                " INNER JOIN USERS AS U ON F.FRIEND_ID = U.USER_ID WHERE F.USER_ID = ?";
-        return jdbcTemplate.query(sql, this::mapRowToUser, userId);
+        return getUsers(friendGraph.getFriends(userId));
+    }
+
+    @Override
+    public List<Long> getFriendIds(Long userId) {
+        return friendGraph.getFriends(userId);
+    }
+
+    @Override
+    public List<Long> getFollowerIds(Long userId) {
+        return friendGraph.getFollowers(userId);
+    }
+
+    @Override
+    public List<Long> getPopularFriendIds(Long userId, int minFollowers) {
+        return friendGraph.getPopularFriends(userId, minFollowers);
     }
 
     @Override
     public List<User> getCommonFriends(Long id1, Long id2) {
-        final String q = "SELECT F.FRIEND_ID,U.* FROM (" +
-                "SELECT FRIEND_ID FROM FRIENDS WHERE USER_ID = ? INTERSECT " +
-                "SELECT FRIEND_ID FROM FRIENDS WHERE USER_ID = ?" +
-                ") F INNER JOIN USERS U ON F.FRIEND_ID = U.USER_ID";
-        return jdbcTemplate.query(q, this::mapRowToUser, id1, id2);
+        return getUsers(friendGraph.getCommonFriends(id1, id2));
+    }
+
+    // заявки пары пользователей меняются по очереди: встречная транзакция ждёт коммита и видит его результат.
+    // Строки блокируются по возрастанию ID, чтобы две встречные заявки не ждали друг друга.
+    private void lockUsers(Long userId, Long friendId) {
+        jdbcTemplate.queryForList("SELECT USER_ID FROM USERS WHERE USER_ID IN (?, ?) ORDER BY USER_ID FOR UPDATE",
+                Long.class, userId, friendId);
     }
 
-    private boolean checkUserFriend(Long userId, Long friendId) {
-        String sql = "SELECT FRIEND_ID FROM FRIENDS WHERE USER_ID = ? AND FRIEND_ID = ?";
-        return jdbcTemplate.query(sql,
-                (rs, rowNum) -> rs.getLong("FRIEND_ID"), userId, friendId).size() > 0;
+    // пользователи в порядке ids: сначала из кэша, недостающие - одним запросом
+    private List<User> getUsers(List<Long> ids) {
+        Map<Long, User> found = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long id : ids) {
+            User user = userCache.get(id, User.class);
+            if (user == null) {
+                missing.add(id);
+            } else {
+                found.put(id, user);
+            }
+        }
+        if (!missing.isEmpty()) {
+            namedParameterJdbcTemplate.query("SELECT * FROM USERS WHERE USER_ID IN (:ids)",
+                    Map.of("ids", missing), this::mapRowToUser).forEach(user -> {
+                        userCache.put(user.getId(), user);
+                        found.put(user.getId(), user);
+                    });
+        }
+        List<User> users = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            User user = found.get(id);
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
     }
 
     private User mapRowToUser(ResultSet rs, int rowNum) throws SQLException {
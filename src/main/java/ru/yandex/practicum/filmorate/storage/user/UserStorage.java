@@ -4,13 +4,22 @@ import ru.yandex.practicum.filmorate.model.User;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface UserStorage {
 
     Collection<User> findAll();
 
+    List<User> findPage(Long afterId, int limit);
+
+    void streamAll(Consumer<User> consumer);
+
     User getUser(Long id);
 
+    boolean existsUser(Long id);
+
+    List<Long> findMissingUsers(Collection<Long> ids);
+
     User createUser(User user);
 
     User updateUser(User user);
@@ -23,5 +32,13 @@ public interface UserStorage {
 
     List<User> getUserFriendsById(Long userId);
 
+    List<Long> getFriendIds(Long userId);
+
+    // пользователи, у которых userId в друзьях
+    List<Long> getFollowerIds(Long userId);
+
+    // друзья userId, которых добавили в друзья больше minFollowers пользователей
+    List<Long> getPopularFriendIds(Long userId, int minFollowers);
+
     List<User> getCommonFriends(Long userId, Long otherId);
 }
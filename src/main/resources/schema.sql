@@ -43,12 +43,19 @@ create table if not exists FILMS
     RELEASE_DATE     DATE                   not null,
     DURATION         INTEGER                not null,
     RATING_ID        INTEGER,
+    LIKES_COUNT      BIGINT default 0       not null,
     constraint FILMS_PK
         primary key (FILM_ID),
     constraint "films_MPA_RATINGS_RATING_ID_fk"
         foreign key (RATING_ID) references MPA_RATINGS ON DELETE RESTRICT
 );
 
+create index if not exists FILMS_LIKES_COUNT_IDX
+    on FILMS (LIKES_COUNT desc, FILM_ID);
+
+create index if not exists FILMS_RELEASE_DATE_IDX
+    on FILMS (RELEASE_DATE);
+
 create table if not exists FILM_DIRECTOR
 (
     FILM_ID     BIGINT  not null,
@@ -61,6 +68,9 @@ create table if not exists FILM_DIRECTOR
         foreign key (FILM_ID) references FILMS ON DELETE CASCADE
 );
 
+create index if not exists FILM_DIRECTOR_DIRECTOR_IDX
+    on FILM_DIRECTOR (DIRECTOR_ID, FILM_ID);
+
 create table if not exists FILM_LIKES
 (
     FILM_ID BIGINT not null,
@@ -73,6 +83,9 @@ create table if not exists FILM_LIKES
         foreign key (USER_ID) references USERS ON DELETE CASCADE
 );
 
+create index if not exists FILM_LIKES_USER_IDX
+    on FILM_LIKES (USER_ID, FILM_ID);
+
 create table if not exists FILM_GENRES
 (
     FILM_ID  BIGINT  not null,
@@ -85,6 +98,9 @@ create table if not exists FILM_GENRES
         foreign key (GENRE_ID) references GENRES ON DELETE RESTRICT
 );
 
+create index if not exists FILM_GENRES_GENRE_IDX
+    on FILM_GENRES (GENRE_ID, FILM_ID);
+
 create table if not exists FRIENDS
 (
     USER_ID   BIGINT not null,
@@ -98,6 +114,9 @@ create table if not exists FRIENDS
         foreign key (FRIEND_ID) references USERS ON DELETE CASCADE
 );
 
+create index if not exists FRIENDS_FRIEND_IDX
+    on FRIENDS (FRIEND_ID, USER_ID);
+
 create table if not exists REVIEWS
 (
     REVIEW_ID          BIGINT auto_increment,
@@ -105,6 +124,7 @@ create table if not exists REVIEWS
     FILM_ID BIGINT not null,
     USER_ID BIGINT not null,
     IS_POSITIVE BOOLEAN,
+    USEFUL BIGINT default 0 not null, -- сумма LIKE_RATING оценок отзыва
     constraint REVIEWS_PK
         primary key (REVIEW_ID),
     constraint "reviews_FILMS_FILM_ID_fk"
@@ -113,6 +133,12 @@ create table if not exists REVIEWS
         foreign key (USER_ID) references USERS ON DELETE CASCADE
 );
 
+create index if not exists REVIEWS_FILM_USEFUL_IDX
+    on REVIEWS (FILM_ID, USEFUL desc, REVIEW_ID);
+
+create index if not exists REVIEWS_USEFUL_IDX
+    on REVIEWS (USEFUL desc, REVIEW_ID);
+
 create table if not exists REVIEW_LIKES
 (
     REVIEW_ID BIGINT not null,
@@ -141,8 +167,65 @@ create table if not exists FEED
 );
 
 
+create index if not exists FEED_USER_EVENT_IDX on FEED (USER_ID, EVENT_ID);
+create index if not exists FEED_USER_CREATED_IDX on FEED (USER_ID, CREATED_TS);
+create index if not exists FEED_CREATED_IDX on FEED (CREATED_TS);
 
+-- события старше срока хранения, переносятся из FEED задачей FeedRetentionJob
+create table if not exists FEED_ARCHIVE
+(
+    EVENT_ID   BIGINT     not null,
+    ENTITY_ID  BIGINT     not null,
+    USER_ID    BIGINT     not null,
+    CREATED_TS TIMESTAMP WITHOUT TIME ZONE not null,
+    EVENT_TYPE varchar(6) not null,
+    OPERATION  varchar(6) not null,
+    constraint "FEED_ARCHIVE_pk"
+        primary key (EVENT_ID),
+    constraint "FEED_ARCHIVE_USERS_USER_ID_fk"
+        foreign key (USER_ID) references USERS ON DELETE CASCADE
+);
 
+-- ленты "что делали друзья": событие автора раскладывается по его подписчикам при записи
+create table if not exists TIMELINE
+(
+    OWNER_ID BIGINT not null,
+    EVENT_ID BIGINT not null,
+    constraint TIMELINE_PK
+        primary key (OWNER_ID, EVENT_ID),
+    constraint "TIMELINE_USERS_USER_ID_fk"
+        foreign key (OWNER_ID) references USERS ON DELETE CASCADE,
+    constraint "TIMELINE_FEED_EVENT_ID_fk"
+        foreign key (EVENT_ID) references FEED ON DELETE CASCADE
+);
 
+-- проекция для чтения: фильм с рейтингом, жанрами, режиссёрами, лайками и полезностью отзывов в одной строке,
+-- обновляется вместе с исходными таблицами, расхождения чинит FilmViewConsistencyJob
+create table if not exists FILM_VIEW
+(
+    FILM_ID        BIGINT                 not null,
+    FILM_NAME      CHARACTER VARYING(50)  not null,
+    DESCRIPTION    CHARACTER VARYING(200) not null,
+    RELEASE_DATE   DATE                   not null,
+    DURATION       INTEGER                not null,
+    RATING_ID      INTEGER,
+    RATING_NAME    CHARACTER VARYING(10),
+    LIKES_COUNT    BIGINT default 0       not null,
+    GENRE_IDS      INTEGER ARRAY,
+    GENRE_NAMES    CHARACTER VARYING(50) ARRAY,
+    DIRECTOR_IDS   BIGINT ARRAY,
+    DIRECTOR_NAMES CHARACTER VARYING(50) ARRAY,
+    REVIEWS_USEFUL BIGINT default 0       not null,
+    constraint FILM_VIEW_PK
+        primary key (FILM_ID),
+    constraint "FILM_VIEW_FILMS_FILM_ID_fk"
+        foreign key (FILM_ID) references FILMS ON DELETE CASCADE
+);
 
+create index if not exists FILM_VIEW_LIKES_COUNT_IDX
+    on FILM_VIEW (LIKES_COUNT desc, FILM_ID);
 
+-- встроенный полнотекстовый поиск H2 (схема FT); индексы на FILMS и DIRECTOR создаются при старте
+-- в режиме filmorate.films.search.mode=fulltext
+CREATE ALIAS IF NOT EXISTS FT_INIT FOR "org.h2.fulltext.FullText.init";
+CALL FT_INIT();
@@ -1,26 +1,101 @@
 package ru.yandex.practicum.filmorate;
 
+import com.sun.management.ThreadMXBean;
+import com.zaxxer.hikari.HikariDataSource;
 import lombok.RequiredArgsConstructor;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.core.AutoConfigureCache;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.MapConfigurationPropertySource;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.cache.support.NoOpCacheManager;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.PropertiesLoaderUtils;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.yandex.practicum.filmorate.exception.IncorrectParameterException;
+import ru.yandex.practicum.filmorate.exception.ReviewNotFoundException;
+import ru.yandex.practicum.filmorate.model.Director;
+import ru.yandex.practicum.filmorate.model.EventType;
+import ru.yandex.practicum.filmorate.model.Feed;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeBatchResult;
+import ru.yandex.practicum.filmorate.model.LikeOperation;
+import ru.yandex.practicum.filmorate.model.LikesView;
 import ru.yandex.practicum.filmorate.model.Mpa;
+import ru.yandex.practicum.filmorate.model.Operation;
+import ru.yandex.practicum.filmorate.model.Review;
+import ru.yandex.practicum.filmorate.model.ReviewVote;
+import ru.yandex.practicum.filmorate.model.ReviewVoteBatchResult;
+import ru.yandex.practicum.filmorate.model.Suggestion;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.DirectorService;
+import ru.yandex.practicum.filmorate.service.FeedRetentionJob;
+import ru.yandex.practicum.filmorate.service.FeedStreamRegistry;
+import ru.yandex.practicum.filmorate.service.FilmRecommendationEngine;
+import ru.yandex.practicum.filmorate.service.FilmSearchIndex;
 import ru.yandex.practicum.filmorate.service.FilmService;
+import ru.yandex.practicum.filmorate.service.FilmSuggestIndex;
+import ru.yandex.practicum.filmorate.service.FilmViewConsistencyJob;
+import ru.yandex.practicum.filmorate.service.FriendTimelineService;
+import ru.yandex.practicum.filmorate.service.PopularFilmsLeaderboard;
+import ru.yandex.practicum.filmorate.service.ReviewService;
+import ru.yandex.practicum.filmorate.service.SimilarUsersRefreshJob;
 import ru.yandex.practicum.filmorate.service.UserService;
+import ru.yandex.practicum.filmorate.storage.director.DirectorStorage;
+import ru.yandex.practicum.filmorate.storage.feed.BufferedFeedStorage;
+import ru.yandex.practicum.filmorate.storage.feed.FeedDbStorage;
+import ru.yandex.practicum.filmorate.storage.feed.FeedRecordedEvent;
+import ru.yandex.practicum.filmorate.storage.feed.FeedStorage;
+import ru.yandex.practicum.filmorate.storage.feed.TimelineDbStorage;
 import ru.yandex.practicum.filmorate.storage.film.FilmDbStorage;
+import ru.yandex.practicum.filmorate.storage.genre.GenreStorage;
+import ru.yandex.practicum.filmorate.storage.review.ReviewDbStorage;
 import ru.yandex.practicum.filmorate.storage.user.UserDbStorage;
 
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.AssertionsForInterfaceTypes.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @SpringBootTest
 @AutoConfigureTestDatabase
@@ -32,7 +107,27 @@ class FilmorateApplicationTests {
     private final UserDbStorage userStorage;
     private final FilmDbStorage filmStorage;
     private final FilmService filmService;
+    private final GenreStorage genreStorage;
+    private final DirectorStorage directorStorage;
+    private final FilmRecommendationEngine recommendationEngine;
+    private final FilmSearchIndex searchIndex;
+    private final FilmSuggestIndex suggestIndex;
+    private final PopularFilmsLeaderboard popularFilms;
     private final UserService userService;
+    private final SimilarUsersRefreshJob similarUsersRefreshJob;
+    private final FeedDbStorage feedStorage;
+    private final FeedRetentionJob feedRetentionJob;
+    private final FriendTimelineService friendTimelineService;
+    private final TimelineDbStorage timelineStorage;
+    private final FeedStreamRegistry feedStreamRegistry;
+    private final DirectorService directorService;
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+    private final DataSource dataSource;
+    private final FilmViewConsistencyJob filmViewConsistencyJob;
+    private final BufferedFeedStorage bufferedFeedStorage;
+    private final ReviewDbStorage reviewStorage;
+    private final ReviewService reviewService;
 
     private User firstUser;
     private User secondUser;
@@ -51,6 +146,10 @@ class FilmorateApplicationTests {
     private static final String DESCRIPTION = "Подробное описание";
     private static final LocalDate TEST_DATE = LocalDate.of(1980, 12, 23);
     private static final LocalDate UPD_TEST_DATE = LocalDate.of(2000, 12, 23);
+    // запросы, которым полный просмотр нужен по смыслу
+    private static final List<String> FULL_SCAN_ALLOWED = List.of(
+            "LIKE LOWER(" // поиск по подстроке в режиме like
+    );
 
 
     @BeforeEach
@@ -99,6 +198,47 @@ class FilmorateApplicationTests {
         thirdFilm.setGenres(new HashSet<>(List.of(new Genre(2, "Драма"))));
     }
 
+    // пользователи с логинами prefix0, prefix1, ...
+    private List<Long> createUsers(String prefix, int count) {
+        return createUsers(userStorage, prefix, count);
+    }
+
+    private List<Long> createUsers(UserDbStorage storage, String prefix, int count) {
+        List<Long> userIds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            userIds.add(storage.createUser(newUser(prefix + i)).getId());
+        }
+        return userIds;
+    }
+
+    // фильмы "prefix 0", "prefix 1", ... создаются через FilmService и попадают в индексы в памяти
+    private List<Long> createFilms(String prefix, int count) {
+        List<Long> filmIds = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            filmIds.add(filmService.createFilm(newFilm(prefix + " " + i)).getId());
+        }
+        return filmIds;
+    }
+
+    private static User newUser(String login) {
+        User user = new User();
+        user.setEmail(login + "@ya.ru");
+        user.setLogin(login);
+        user.setName(login);
+        user.setBirthday(TEST_DATE);
+        return user;
+    }
+
+    private static Film newFilm(String name) {
+        Film film = new Film();
+        film.setName(name);
+        film.setDescription(DESCRIPTION);
+        film.setReleaseDate(TEST_DATE);
+        film.setDuration(100);
+        film.setMpa(new Mpa(1, "G"));
+        return film;
+    }
+
     @Test
     public void testCreateUserAndGetUserById() {
         firstUser = userStorage.createUser(firstUser);
@@ -179,6 +319,21 @@ class FilmorateApplicationTests {
         assertThat(listFilms).contains(thirdFilm);
     }
 
+    @Test
+    public void testGetFilmsAndUsersByPages() {
+        firstFilm = filmService.createFilm(firstFilm);
+        secondFilm = filmService.createFilm(secondFilm);
+        thirdFilm = filmService.createFilm(thirdFilm);
+        List<Film> page = filmService.findPage(null, 2, LikesView.IDS, null);
+        assertThat(page).containsExactly(firstFilm, secondFilm);
+        page = filmService.findPage(page.get(1).getId(), 2, LikesView.IDS, null);
+        assertThat(page).containsExactly(thirdFilm);
+
+        firstUser = userStorage.createUser(firstUser);
+        secondUser = userStorage.createUser(secondUser);
+        assertThat(userService.findPage(firstUser.getId(), 10)).containsExactly(secondUser);
+    }
+
     @Test
     public void testUpdateFilm() {
         firstFilm = filmStorage.createFilm(firstFilm);
@@ -236,6 +391,101 @@ class FilmorateApplicationTests {
         assertThat(firstFilm.getLikes()).contains(secondUser.getId());
     }
 
+    @Test
+    public void testTopNPopularFilmsUsesLikesCount() {
+        filmService.rebuildPopularFilms();
+        firstUser = userStorage.createUser(firstUser);
+        secondUser = userStorage.createUser(secondUser);
+        firstFilm = filmService.createFilm(firstFilm);
+        secondFilm = filmService.createFilm(secondFilm);
+        thirdFilm = filmService.createFilm(thirdFilm);
+        filmService.addLike(secondFilm.getId(), firstUser.getId());
+        filmService.addLike(secondFilm.getId(), secondUser.getId());
+        filmService.addLike(thirdFilm.getId(), firstUser.getId());
+        filmService.addLike(thirdFilm.getId(), firstUser.getId());
+        assertThat(filmService.getTopNPopularFilms(10, null, null))
+                .extracting(Film::getId)
+                .containsExactly(secondFilm.getId(), thirdFilm.getId(), firstFilm.getId());
+        assertThat(filmService.getTopNPopularFilms(10, 2, null))
+                .extracting(Film::getId)
+                .containsExactly(thirdFilm.getId(), firstFilm.getId());
+        assertThat(filmService.getTopNPopularFilms(10, 2, 1992))
+                .extracting(Film::getId)
+                .containsExactly(thirdFilm.getId());
+        filmService.removeLike(secondFilm.getId(), firstUser.getId());
+        filmService.removeLike(secondFilm.getId(), secondUser.getId());
+        assertThat(filmService.getTopNPopularFilms(1, null, null))
+                .extracting(Film::getId)
+                .containsExactly(thirdFilm.getId());
+        assertThat(filmStorage.recalculateLikesCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRecommendations() {
+        firstUser = userStorage.createUser(firstUser);
+        secondUser = userStorage.createUser(secondUser);
+        thirdUser = userStorage.createUser(thirdUser);
+        firstFilm = filmService.createFilm(firstFilm);
+        secondFilm = filmService.createFilm(secondFilm);
+        thirdFilm = filmService.createFilm(thirdFilm);
+        filmService.addLike(firstFilm.getId(), firstUser.getId());
+        filmService.addLike(firstFilm.getId(), secondUser.getId());
+        filmService.addLike(secondFilm.getId(), secondUser.getId());
+        filmService.addLike(thirdFilm.getId(), thirdUser.getId());
+        similarUsersRefreshJob.refresh();
+        assertThat(filmService.getRecommendationsByUserId(firstUser.getId()))
+                .extracting(Film::getId)
+                .containsExactly(secondFilm.getId());
+        filmService.removeLike(firstFilm.getId(), secondUser.getId());
+        assertThat(filmService.getRecommendationsByUserId(firstUser.getId())).isEmpty();
+    }
+
+    @Test
+    public void testRecommendationsFromAllNeighbours() {
+        firstUser = userStorage.createUser(firstUser);
+        secondUser = userStorage.createUser(secondUser);
+        thirdUser = userStorage.createUser(thirdUser);
+        firstFilm = filmService.createFilm(firstFilm);
+        secondFilm = filmService.createFilm(secondFilm);
+        thirdFilm = filmService.createFilm(thirdFilm);
+        Film fourthFilm = filmService.createFilm(newFilm("Сталкер"));
+        // второй пользователь похож на первого сильнее (два общих лайка), третий - слабее (один)
+        for (Film film : List.of(firstFilm, secondFilm, fourthFilm)) {
+            filmService.addLike(film.getId(), secondUser.getId());
+        }
+        for (Film film : List.of(firstFilm, thirdFilm)) {
+            filmService.addLike(film.getId(), thirdUser.getId());
+        }
+        filmService.addLike(firstFilm.getId(), firstUser.getId());
+        filmService.addLike(secondFilm.getId(), firstUser.getId());
+        similarUsersRefreshJob.refresh();
+        assertThat(filmService.getRecommendationsByUserId(firstUser.getId()))
+                .extracting(Film::getId)
+                .containsExactly(fourthFilm.getId(), thirdFilm.getId());
+
+        filmService.addLike(thirdFilm.getId(), secondUser.getId());
+        assertThat(filmService.getRecommendationsByUserId(firstUser.getId()))
+                .extracting(Film::getId)
+                .containsExactly(thirdFilm.getId(), fourthFilm.getId());
+    }
+
+    @Test
+    public void testPopularFilmsWithLikesCountOnly() {
+        filmService.rebuildPopularFilms();
+        firstUser = userStorage.createUser(firstUser);
+        secondUser = userStorage.createUser(secondUser);
+        firstFilm = filmService.createFilm(firstFilm);
+        filmService.addLike(firstFilm.getId(), firstUser.getId());
+        List<Film> films = filmService.getTopNPopularFilms(10, null, null, LikesView.COUNT, secondUser.getId());
+        assertThat(films).hasSize(1);
+        assertThat(films.get(0))
+                .hasFieldOrPropertyWithValue("likes", null)
+                .hasFieldOrPropertyWithValue("likesCount", 1L)
+                .hasFieldOrPropertyWithValue("likedByMe", false);
+        films = filmService.getTopNPopularFilms(10, null, null, LikesView.COUNT, firstUser.getId());
+        assertThat(films.get(0)).hasFieldOrPropertyWithValue("likedByMe", true);
+    }
+
         @Test
     public void testAddFriend() {
         firstUser = userStorage.createUser(firstUser);
@@ -281,5 +531,1072 @@ class FilmorateApplicationTests {
         assertThat(userService.getCommonFriends(firstUser.getId(), secondUser.getId()))
                 .contains(thirdUser);
     }
-}
 
+    @Test
+    public void testCachedFilmIsEvictedOnLikeAndUpdate() {
+        firstUser = userStorage.createUser(firstUser);
+        firstFilm = filmService.createFilm(firstFilm);
+        Film cached = filmService.getFilmById(firstFilm.getId());
+        assertThat(filmService.getFilmById(firstFilm.getId())).isSameAs(cached);
+
+        filmService.addLike(firstFilm.getId(), firstUser.getId());
+        assertThat(filmService.getFilmById(firstFilm.getId()).getLikes()).containsExactly(firstUser.getId());
+
+        firstFilm.setName(UPD_NAME);
+        firstFilm.setGenres(new HashSet<>(List.of(new Genre(6, "Боевик"))));
+        filmService.updateFilm(firstFilm);
+        Film updated = filmService.getFilmById(firstFilm.getId());
+        assertThat(updated.getName()).isEqualTo(UPD_NAME);
+        assertThat(updated.getGenres()).extracting(Genre::getId).containsExactly(6);
+    }
+
+    @Test
+    public void testExistsUserAndFilm() {
+        firstUser = userStorage.createUser(firstUser);
+        firstFilm = filmStorage.createFilm(firstFilm);
+        assertThat(userStorage.existsUser(firstUser.getId())).isTrue();
+        assertThat(filmStorage.existsFilm(firstFilm.getId())).isTrue();
+        assertThat(filmStorage.findMissingFilms(List.of(firstFilm.getId(), firstFilm.getId() + 1)))
+                .containsExactly(firstFilm.getId() + 1);
+
+        userStorage.deleteUser(firstUser.getId());
+        filmStorage.deleteFilm(firstFilm.getId());
+        assertThat(userStorage.existsUser(firstUser.getId())).isFalse();
+        assertThat(filmStorage.existsFilm(firstFilm.getId())).isFalse();
+    }
+
+    @Test
+    public void testApplyLikesBatch() {
+        firstUser = userStorage.createUser(firstUser);
+        secondUser = userStorage.createUser(secondUser);
+        firstFilm = filmService.createFilm(firstFilm);
+        secondFilm = filmService.createFilm(secondFilm);
+        filmService.addLike(secondFilm.getId(), secondUser.getId());
+
+        LikeBatchResult result = filmService.applyLikes(List.of(
+                new LikeOperation(firstFilm.getId(), firstUser.getId(), Operation.ADD),
+                new LikeOperation(firstFilm.getId(), secondUser.getId(), Operation.ADD),
+                new LikeOperation(secondFilm.getId(), firstUser.getId(), Operation.ADD),
+                new LikeOperation(secondFilm.getId(), firstUser.getId(), Operation.REMOVE),
+                new LikeOperation(secondFilm.getId(), secondUser.getId(), Operation.REMOVE),
+                new LikeOperation(firstFilm.getId(), firstUser.getId(), Operation.ADD)));
+        assertThat(result).isEqualTo(new LikeBatchResult(6, 2, 1));
+        assertThat(filmService.getFilmById(firstFilm.getId()).getLikes())
+                .containsExactlyInAnyOrder(firstUser.getId(), secondUser.getId());
+        assertThat(filmService.getFilmById(firstFilm.getId()).getLikesCount()).isEqualTo(2);
+        assertThat(filmService.getFilmById(secondFilm.getId()).getLikesCount()).isZero();
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void testLeaderboardRebuildDuringConcurrentLikes() throws Exception {
+        List<Long> userIds = createUsers("rebuild", 8);
+        List<Long> filmIds = createFilms("Пересборка", 4);
+        List<Long> leaverIds = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(userIds.size() + 4);
+        try {
+            // каждый пользователь ставит и снимает лайки своим фильмам, пока рейтинг пересобирается
+            List<Future<?>> futures = new ArrayList<>();
+            for (Long userId : userIds) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        Long filmId = filmIds.get(i % filmIds.size());
+                        if (i / filmIds.size() % 2 == 0) {
+                            filmService.addLike(filmId, userId);
+                        } else {
+                            filmService.removeLike(filmId, userId);
+                        }
+                    }
+                    filmService.addLike(filmIds.get(userId.intValue() % filmIds.size()), userId);
+                    return null;
+                }));
+            }
+            // а эти потоки заводят пользователей, которые лайкают все фильмы и удаляются вместе с лайками
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        Long leaverId = userService.createUser(newUser("leaver" + thread + "_" + i)).getId();
+                        leaverIds.add(leaverId);
+                        filmIds.forEach(filmId -> filmService.addLike(filmId, leaverId));
+                        userService.deleteUser(leaverId);
+                    }
+                    return null;
+                }));
+            }
+            while (!futures.stream().allMatch(Future::isDone)) {
+                filmService.rebuildPopularFilms();
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            for (Long filmId : filmIds) {
+                assertThat(popularFilms.getLikes(filmId)).isEqualTo(jdbcTemplate.queryForObject(
+                        "SELECT LIKES_COUNT FROM FILMS WHERE FILM_ID = ?", Long.class, filmId));
+            }
+        } finally {
+            executor.shutdown();
+            bufferedFeedStorage.flush();
+            filmIds.forEach(filmService::deleteFilm);
+            userIds.forEach(userStorage::deleteUser);
+            leaverIds.forEach(userStorage::deleteUser);
+        }
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void testBufferedFeedKeepsOrderWhenQueueIsFull() {
+        List<Feed> written = new ArrayList<>();
+        FeedStorage recordingStorage = new FeedStorage() {
+            @Override
+            public List<Feed> getFeedByUserId(Long id) {
+                return new ArrayList<>(written);
+            }
+
+            @Override
+            public void addFeed(Long entityId, Long userId, EventType eventType, Operation operation) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void addFeeds(List<Feed> feeds) {
+                written.addAll(feeds);
+            }
+
+            @Override
+            public List<Feed> getFeedByUserId(Long id, Long afterId, Instant since, Instant before, Integer limit) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public List<Feed> getFeedByUserIds(Collection<Long> userIds, Long beforeEventId, int limit) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int archiveFeedBefore(Instant cutoff) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        // поток записи не запущен: очередь освобождают только переполнение и чтение ленты
+        BufferedFeedStorage bufferedFeed = new BufferedFeedStorage(recordingStorage, event -> {
+        }, true, 2, 2, 10_000);
+        for (long i = 1; i <= 5; i++) {
+            bufferedFeed.addFeed(i, 1L, EventType.LIKE, Operation.ADD);
+        }
+        assertThat(written).hasSize(4);
+        assertThat(bufferedFeed.getFeedByUserId(1L)).extracting(Feed::getEntityId)
+                .containsExactly(1L, 2L, 3L, 4L, 5L);
+    }
+
+    @Test
+    public void testFeedPagesAndArchive() {
+        firstUser = userStorage.createUser(firstUser);
+        Instant start = Instant.parse("2020-01-01T00:00:00Z");
+        List<Feed> feeds = new ArrayList<>();
+        for (long i = 0; i < 5; i++) {
+            Feed feed = new Feed();
+            feed.setEntityId(i);
+            feed.setUserId(firstUser.getId());
+            feed.setTimestamp(start.plus(Duration.ofDays(i)).toEpochMilli());
+            feed.setEventType(EventType.LIKE);
+            feed.setOperation(Operation.ADD);
+            feeds.add(feed);
+        }
+        feedStorage.addFeeds(feeds);
+
+        List<Feed> firstPage = userService.getFeedByUserId(firstUser.getId(), null, null, null, 2);
+        assertThat(firstPage).extracting(Feed::getEntityId).containsExactly(0L, 1L);
+        assertThat(userService.getFeedByUserId(firstUser.getId(), firstPage.get(1).getEventId(), null, null, 2))
+                .extracting(Feed::getEntityId).containsExactly(2L, 3L);
+        assertThat(userService.getFeedByUserId(firstUser.getId(), null, start.plus(Duration.ofDays(1)),
+                start.plus(Duration.ofDays(3)), null)).extracting(Feed::getEntityId).containsExactly(1L, 2L);
+
+        assertThat(feedRetentionJob.archiveBefore(start.plus(Duration.ofDays(2)))).isEqualTo(2);
+        assertThat(userService.getFeedByUserId(firstUser.getId())).extracting(Feed::getEntityId)
+                .containsExactly(2L, 3L, 4L);
+    }
+
+    @Test
+    public void testFriendsFeed() {
+        firstUser = userStorage.createUser(firstUser);
+        secondUser = userStorage.createUser(secondUser);
+        thirdUser = userStorage.createUser(thirdUser);
+        userService.addFriend(firstUser.getId(), secondUser.getId());
+        userService.addFriend(firstUser.getId(), thirdUser.getId());
+        List<Feed> feeds = new ArrayList<>();
+        for (User author : List.of(secondUser, thirdUser, firstUser, secondUser)) {
+            Feed feed = new Feed();
+            feed.setEntityId(author.getId());
+            feed.setUserId(author.getId());
+            feed.setEventType(EventType.LIKE);
+            feed.setOperation(Operation.ADD);
+            feeds.add(feed);
+        }
+        feedStorage.addFeeds(feeds);
+        friendTimelineService.onFeedRecorded(new FeedRecordedEvent(feeds));
+
+        Long[] expected = {feeds.get(3).getEventId(), feeds.get(1).getEventId(), feeds.get(0).getEventId()};
+        assertThat(userService.getFriendsFeed(firstUser.getId(), null, 10)).extracting(Feed::getEventId)
+                .containsExactly(expected);
+        assertThat(userService.getFriendsFeed(firstUser.getId(), feeds.get(3).getEventId(), 1))
+                .extracting(Feed::getEventId).containsExactly(feeds.get(1).getEventId());
+        assertThat(userService.getFriendsFeed(secondUser.getId(), null, 10)).isEmpty();
+
+        // при нулевом пороге все события подмешиваются при чтении, а не раскладываются
+        FriendTimelineService fanOutOnRead = new FriendTimelineService(timelineStorage, userStorage, feedStorage,
+                0, 1000, 100, 100);
+        assertThat(fanOutOnRead.getTimeline(firstUser.getId(), null, 10)).extracting(Feed::getEventId)
+                .containsExactly(expected);
+        assertThat(timelineStorage.trim(1)).isEqualTo(2);
+        assertThat(timelineStorage.getTimeline(firstUser.getId(), null, 10)).extracting(Feed::getEventId)
+                .containsExactly(feeds.get(3).getEventId());
+    }
+
+    @Test
+    public void testFeedStreamReplaysMissedEvents() throws InterruptedException {
+        firstUser = userStorage.createUser(firstUser);
+        List<Feed> feeds = new ArrayList<>();
+        for (long i = 0; i < 3; i++) {
+            Feed feed = new Feed();
+            feed.setEntityId(i);
+            feed.setUserId(firstUser.getId());
+            feed.setEventType(EventType.LIKE);
+            feed.setOperation(Operation.ADD);
+            feeds.add(feed);
+        }
+        feedStorage.addFeeds(feeds.subList(0, 2));
+        List<Long> sent = new CopyOnWriteArrayList<>();
+        SseEmitter emitter = new SseEmitter() {
+            @Override
+            public void send(SseEventBuilder builder) {
+                for (ResponseBodyEmitter.DataWithMediaType data : builder.build()) {
+                    if (data.getData() instanceof Feed) {
+                        sent.add(((Feed) data.getData()).getEventId());
+                    }
+                }
+            }
+        };
+
+        feedStreamRegistry.subscribe(firstUser.getId(), feeds.get(0).getEventId(), emitter);
+        assertThat(sent).containsExactly(feeds.get(1).getEventId());
+
+        feedStorage.addFeeds(feeds.subList(2, 3));
+        feedStreamRegistry.onFeedRecorded(new FeedRecordedEvent(feeds.subList(1, 3)));
+        for (int i = 0; i < 50 && sent.size() < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(sent).containsExactly(feeds.get(1).getEventId(), feeds.get(2).getEventId());
+        emitter.complete();
+    }
+
+    @Test
+    public void testSearchFilmsByIndex() {
+        firstUser = userStorage.createUser(firstUser);
+        Director director = directorService.createDirector(new Director(null, "Алексей Ёлкин"));
+        firstFilm.setDirectors(new HashSet<>(List.of(director)));
+        firstFilm = filmService.createFilm(firstFilm);
+        secondFilm.setName("Ёлки");
+        secondFilm = filmService.createFilm(secondFilm);
+        thirdFilm.setDescription("Про новогодние елки");
+        thirdFilm = filmService.createFilm(thirdFilm);
+        filmService.addLike(secondFilm.getId(), firstUser.getId());
+
+        assertThat(filmService.searchFilms("ЕЛК", List.of("title", "director")))
+                .extracting(Film::getId).containsExactly(secondFilm.getId(), firstFilm.getId());
+        assertThat(filmService.searchFilms("ёлк", List.of("description")))
+                .extracting(Film::getId).containsExactly(thirdFilm.getId());
+        assertThat(filmService.searchFilms("мост", List.of("title")))
+                .extracting(Film::getId).containsExactly(firstFilm.getId());
+
+        directorService.updateDirector(new Director(director.getId(), "Тимур Бекмамбетов"));
+        secondFilm.setName("Джон Уик");
+        filmService.updateFilm(secondFilm);
+        assertThat(filmService.searchFilms("елк", List.of("title", "director"))).isEmpty();
+        assertThat(filmService.searchFilms("бекмамб", List.of("director")))
+                .extracting(Film::getId).containsExactly(firstFilm.getId());
+
+        filmService.deleteFilm(firstFilm.getId());
+        assertThat(filmService.searchFilms("бекмамб", List.of("director"))).isEmpty();
+    }
+
+    @Test
+    public void testSuggestFilmAndDirectorNames() {
+        firstUser = userStorage.createUser(firstUser);
+        secondUser = userStorage.createUser(secondUser);
+        Director director = directorService.createDirector(new Director(null, "Зеркалов"));
+        firstFilm.setName("Зеркало");
+        firstFilm = filmService.createFilm(firstFilm);
+        secondFilm.setName("Зеркальный мир");
+        secondFilm.setDirectors(new HashSet<>(List.of(director)));
+        secondFilm = filmService.createFilm(secondFilm);
+        filmService.addLike(secondFilm.getId(), firstUser.getId());
+        filmService.addLike(firstFilm.getId(), firstUser.getId());
+        filmService.addLike(firstFilm.getId(), secondUser.getId());
+
+        assertThat(filmService.suggest("ЗЕРКАЛ", 10)).extracting(Suggestion::getText)
+                .containsExactly("Зеркало", "Зеркалов", "Зеркальный мир");
+        assertThat(filmService.suggest("зеркаль", 10)).extracting(Suggestion::getId)
+                .containsExactly(secondFilm.getId());
+        assertThat(filmService.suggest("зеркал", 1)).extracting(Suggestion::getType)
+                .containsExactly("film");
+        filmService.removeLike(firstFilm.getId(), firstUser.getId());
+        filmService.removeLike(firstFilm.getId(), secondUser.getId());
+        assertThat(filmService.suggest("зеркал", 10)).extracting(Suggestion::getText)
+                .containsExactly("Зеркалов", "Зеркальный мир", "Зеркало");
+        userService.deleteUser(firstUser.getId());
+        filmService.addLike(firstFilm.getId(), secondUser.getId());
+        assertThat(filmService.suggest("зеркал", 10)).extracting(Suggestion::getText)
+                .containsExactly("Зеркало", "Зеркалов", "Зеркальный мир");
+        assertThat(filmService.suggest("зеркал", 10)).extracting(Suggestion::getLikesCount)
+                .containsExactly(1L, 0L, 0L);
+
+        directorService.updateDirector(new Director(director.getId(), "Тарковский"));
+        filmService.deleteFilm(firstFilm.getId());
+        assertThat(filmService.suggest("зеркал", 10)).extracting(Suggestion::getText)
+                .containsExactly("Зеркальный мир");
+        assertThat(filmService.suggest("тарковск", 10)).extracting(Suggestion::getLikesCount)
+                .containsExactly(0L);
+    }
+
+    @Test
+    public void testSuggestIndexKeepsTopPerPrefix() {
+        // маленькие узлы, чтобы дерево делилось уже на сотне названий
+        FilmSuggestIndex index = new FilmSuggestIndex(filmStorage, 3, 2);
+        Random random = new Random(42);
+        Map<Long, String> names = new HashMap<>();
+        Map<Long, Long> likes = new HashMap<>();
+        for (long id = 1; id <= 300; id++) {
+            names.put(id, randomSuggestName(random, id));
+            likes.put(id, (long) random.nextInt(5));
+            index.putFilm(suggestFilm(id, names.get(id), likes.get(id)));
+        }
+        for (int step = 1; step <= 3000; step++) {
+            Long id = (long) random.nextInt(330) + 1;
+            int action = random.nextInt(10);
+            if (!names.containsKey(id)) {
+                names.put(id, randomSuggestName(random, id));
+                likes.put(id, 0L);
+                index.putFilm(suggestFilm(id, names.get(id), 0));
+            } else if (action == 0) {
+                names.remove(id);
+                likes.remove(id);
+                index.removeFilm(id);
+            } else if (action == 1) {
+                names.put(id, randomSuggestName(random, id));
+                index.putFilm(suggestFilm(id, names.get(id), 0)); // лайки переименованного фильма сохраняются
+            } else {
+                long delta = action < 6 || likes.get(id) == 0 ? 1 : -1;
+                likes.merge(id, delta, Long::sum);
+                index.changeLikes(id, delta);
+            }
+            if (step % 500 == 0) {
+                for (String prefix : List.of("а", "б", "в", "аб", "ва", "бба", "ав", "вав б", "г")) {
+                    for (int count : List.of(1, 3, 5)) {
+                        List<String> expected = names.keySet().stream()
+                                .filter(filmId -> names.get(filmId).startsWith(prefix))
+                                .sorted(Comparator.comparing((Long filmId) -> -likes.get(filmId))
+                                        .thenComparing(names::get))
+                                .limit(count)
+                                .map(names::get)
+                                .collect(Collectors.toList());
+                        assertThat(index.suggest(prefix, count)).extracting(Suggestion::getText)
+                                .as("%s, %d", prefix, count)
+                                .isEqualTo(expected);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String randomSuggestName(Random random, long id) {
+        StringBuilder name = new StringBuilder();
+        for (int i = random.nextInt(4) + 1; i > 0; i--) {
+            name.append("абв".charAt(random.nextInt(3)));
+        }
+        return name.append(' ').append(id).toString();
+    }
+
+    private static Film suggestFilm(long id, String name, long likesCount) {
+        Film film = new Film();
+        film.setId(id);
+        film.setName(name);
+        film.setLikesCount(likesCount);
+        return film;
+    }
+
+    @Test
+    public void testSearchFilmsByFullText() {
+        filmStorage.initFullTextSearch(); // создание индексов завершает транзакцию, поэтому до вставки данных
+        Director director = directorService.createDirector(new Director(null, "Кончаловский"));
+        firstFilm.setName("Сибириада");
+        firstFilm = filmService.createFilm(firstFilm);
+        secondFilm.setName("Сталкер");
+        secondFilm.setDirectors(new HashSet<>(List.of(director)));
+        secondFilm = filmService.createFilm(secondFilm);
+
+        assertThat(filmStorage.searchFilmIdsByFullText("сибириада", List.of("title", "director")))
+                .containsExactly(firstFilm.getId());
+        assertThat(filmStorage.searchFilmIdsByFullText("КОНЧАЛОВСКИЙ", List.of("title", "director")))
+                .containsExactly(secondFilm.getId());
+        assertThat(filmStorage.searchFilmIdsByFullText("Кончаловский", List.of("title"))).isEmpty();
+    }
+
+    @Test
+    public void testFilmViewFollowsWritesAndIsRepaired() {
+        firstUser = userStorage.createUser(firstUser);
+        Director director = directorService.createDirector(new Director(null, "Данелия"));
+        firstFilm.setDirectors(new HashSet<>(List.of(director)));
+        firstFilm = filmService.createFilm(firstFilm);
+        filmService.addLike(firstFilm.getId(), firstUser.getId());
+        directorService.updateDirector(new Director(director.getId(), "Георгий Данелия"));
+
+        Film film = filmService.getFilmById(firstFilm.getId());
+        assertThat(film.getLikesCount()).isEqualTo(1);
+        assertThat(film.getDirectors()).extracting(Director::getName).containsExactly("Георгий Данелия");
+        assertThat(film.getGenres()).extracting(Genre::getId).containsExactly(1, 2);
+        assertThat(filmViewConsistencyJob.check()).isZero();
+
+        jdbcTemplate.update("UPDATE FILM_VIEW SET LIKES_COUNT = 42, DIRECTOR_NAMES = NULL WHERE FILM_ID = ?",
+                firstFilm.getId());
+        assertThat(filmViewConsistencyJob.check()).isEqualTo(1);
+        film = filmService.getFilmById(firstFilm.getId());
+        assertThat(film.getLikesCount()).isEqualTo(1);
+        assertThat(film.getDirectors()).extracting(Director::getName).containsExactly("Георгий Данелия");
+    }
+
+    @Test
+    public void testReviewUsefulFollowsVotes() {
+        firstUser = userService.createUser(firstUser);
+        secondUser = userService.createUser(secondUser);
+        thirdUser = userService.createUser(thirdUser);
+        firstFilm = filmService.createFilm(firstFilm);
+        Review first = reviewService.createReview(new Review(null, "Хороший", true, firstUser.getId(),
+                firstFilm.getId(), null));
+        Review second = reviewService.createReview(new Review(null, "Плохой", false, secondUser.getId(),
+                firstFilm.getId(), null));
+
+        reviewService.addLike(second.getReviewId(), firstUser.getId());
+        reviewService.addLike(second.getReviewId(), thirdUser.getId());
+        reviewService.addDislike(first.getReviewId(), thirdUser.getId());
+        assertThat(reviewService.getReviewById(second.getReviewId()).getUseful()).isEqualTo(2L);
+        assertThat(reviewService.findTopNReviewsByFilmId(firstFilm.getId(), 10L))
+                .extracting(Review::getReviewId).containsExactly(second.getReviewId(), first.getReviewId());
+        assertThat(filmService.getFilmById(firstFilm.getId()).getReviewsUseful()).isEqualTo(1L);
+
+        reviewService.removeLike(second.getReviewId(), firstUser.getId());
+        reviewService.removeDislike(first.getReviewId(), thirdUser.getId());
+        reviewService.removeDislike(first.getReviewId(), thirdUser.getId()); // повторное удаление ничего не меняет
+        assertThat(reviewService.getReviewById(second.getReviewId()).getUseful()).isEqualTo(1L);
+        assertThat(reviewService.getReviewById(first.getReviewId()).getUseful()).isEqualTo(0L);
+
+        // оценки удалённого пользователя удаляются каскадно вместе с его вкладом в полезность
+        userService.deleteUser(thirdUser.getId());
+        assertThat(reviewService.getReviewById(second.getReviewId()).getUseful()).isEqualTo(0L);
+        assertThat(filmService.getFilmById(firstFilm.getId()).getReviewsUseful()).isZero();
+        assertThat(filmService.getTopNPopularFilms(10, null, null, LikesView.COUNT, null))
+                .extracting(Film::getReviewsUseful).containsOnly(0L);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM REVIEWS AS R WHERE R.USEFUL <> " +
+                "(SELECT COALESCE(SUM(LIKE_RATING), 0) FROM REVIEW_LIKES AS RL WHERE RL.REVIEW_ID = R.REVIEW_ID)",
+                Integer.class)).isZero();
+        assertThrows(ReviewNotFoundException.class, () -> reviewService.addLike(Long.MAX_VALUE, firstUser.getId()));
+    }
+
+    @Test
+    public void testReviewKeysetPagesAndFirstPageCache() {
+        firstUser = userService.createUser(firstUser);
+        secondUser = userService.createUser(secondUser);
+        firstFilm = filmService.createFilm(firstFilm);
+        List<Long> reviewIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            reviewIds.add(reviewService.createReview(new Review(null, "Отзыв " + i, true, firstUser.getId(),
+                    firstFilm.getId(), null)).getReviewId());
+        }
+        reviewService.addLike(reviewIds.get(3), firstUser.getId());
+        reviewService.addLike(reviewIds.get(3), secondUser.getId());
+        reviewService.addLike(reviewIds.get(1), firstUser.getId());
+        reviewService.addDislike(reviewIds.get(0), firstUser.getId());
+        List<Long> expected = List.of(reviewIds.get(3), reviewIds.get(1), reviewIds.get(2), reviewIds.get(4),
+                reviewIds.get(0));
+
+        List<Long> paged = new ArrayList<>();
+        List<Review> page = reviewService.findReviews(firstFilm.getId(), null, null, 2L);
+        while (!page.isEmpty()) {
+            page.forEach(review -> paged.add(review.getReviewId()));
+            Review last = page.get(page.size() - 1);
+            page = reviewService.findReviews(firstFilm.getId(), last.getUseful(), last.getReviewId(), 2L);
+        }
+        assertThat(paged).isEqualTo(expected);
+        Review last = reviewService.getReviewById(reviewIds.get(1));
+        assertThat(reviewService.findReviews(null, last.getUseful(), last.getReviewId(), 100L))
+                .extracting(Review::getReviewId).containsSubsequence(reviewIds.get(2), reviewIds.get(4),
+                        reviewIds.get(0));
+
+        // первая страница берётся из кэша и сбрасывается при оценке отзыва
+        assertThat(reviewService.findTopNReviewsByFilmId(firstFilm.getId(), 1L))
+                .extracting(Review::getReviewId).containsExactly(reviewIds.get(3));
+        reviewService.removeLike(reviewIds.get(3), firstUser.getId());
+        reviewService.removeLike(reviewIds.get(3), secondUser.getId());
+        assertThat(reviewService.findTopNReviewsByFilmId(firstFilm.getId(), 1L))
+                .extracting(Review::getReviewId).containsExactly(reviewIds.get(1));
+        assertThrows(IncorrectParameterException.class,
+                () -> reviewService.findReviews(firstFilm.getId(), 1L, null, 2L));
+    }
+
+    @Test
+    public void testApplyReviewVotesBatch() {
+        firstUser = userService.createUser(firstUser);
+        secondUser = userService.createUser(secondUser);
+        thirdUser = userService.createUser(thirdUser);
+        firstFilm = filmService.createFilm(firstFilm);
+        Long reviewId = reviewService.createReview(new Review(null, "Отзыв", true, firstUser.getId(),
+                firstFilm.getId(), null)).getReviewId();
+        reviewService.addLike(reviewId, firstUser.getId());
+        reviewService.addLike(reviewId, secondUser.getId());
+
+        ReviewVoteBatchResult result = reviewService.applyVotes(List.of(
+                new ReviewVote(reviewId, firstUser.getId(), -1), // лайк меняется на дизлайк
+                new ReviewVote(reviewId, secondUser.getId(), 0), // лайк снимается
+                new ReviewVote(reviewId, thirdUser.getId(), -1),
+                new ReviewVote(reviewId, thirdUser.getId(), 1))); // из двух оценок одной пары действует последняя
+        assertThat(result).isEqualTo(new ReviewVoteBatchResult(4, 3));
+        assertThat(reviewService.getReviewById(reviewId).getUseful()).isEqualTo(0L);
+        assertThat(jdbcTemplate.queryForObject("SELECT REVIEWS_USEFUL FROM FILM_VIEW WHERE FILM_ID = ?",
+                Long.class, firstFilm.getId())).isEqualTo(0L);
+
+        // повторная загрузка тех же оценок ничего не меняет
+        result = reviewService.applyVotes(List.of(new ReviewVote(reviewId, firstUser.getId(), -1),
+                new ReviewVote(reviewId, thirdUser.getId(), 1)));
+        assertThat(result).isEqualTo(new ReviewVoteBatchResult(2, 0));
+        assertThat(reviewService.getReviewById(reviewId).getUseful()).isEqualTo(0L);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM REVIEW_LIKES WHERE REVIEW_ID = ?",
+                Integer.class, reviewId)).isEqualTo(2);
+
+        assertThrows(ReviewNotFoundException.class, () -> reviewService.applyVotes(List.of(
+                new ReviewVote(reviewId, firstUser.getId(), 1), new ReviewVote(Long.MAX_VALUE, firstUser.getId(), 1))));
+        assertThrows(IncorrectParameterException.class, () -> reviewService.applyVotes(List.of(
+                new ReviewVote(reviewId, firstUser.getId(), 2))));
+        assertThat(reviewService.getReviewById(reviewId).getUseful()).isEqualTo(0L);
+    }
+
+    @Test
+    public void testFriendGraphFollowsFriendsTable() {
+        firstUser = userService.createUser(firstUser);
+        secondUser = userService.createUser(secondUser);
+        thirdUser = userService.createUser(thirdUser);
+        userService.addFriend(firstUser.getId(), thirdUser.getId());
+        userService.addFriend(secondUser.getId(), thirdUser.getId());
+        userService.addFriend(thirdUser.getId(), firstUser.getId());
+        assertThat(jdbcTemplate.queryForObject("SELECT STATUS FROM FRIENDS WHERE USER_ID = ? AND FRIEND_ID = ?",
+                Boolean.class, firstUser.getId(), thirdUser.getId())).isTrue();
+        assertThat(userStorage.getFollowerIds(thirdUser.getId()))
+                .containsExactly(firstUser.getId(), secondUser.getId());
+
+        // граф, загруженный заново из FRIENDS, совпадает с обновлявшимся по ходу
+        userStorage.loadFriendGraph();
+        assertThat(userService.getCommonFriends(firstUser.getId(), secondUser.getId())).containsExactly(thirdUser);
+        secondUser.setName("Новое имя");
+        userService.updateUser(secondUser); // имя берётся из базы, а не из старой записи в кэше
+        assertThat(userService.getUserFriendsById(thirdUser.getId())).extracting(User::getName)
+                .containsExactly(firstUser.getName());
+        userService.removeFriend(firstUser.getId(), thirdUser.getId());
+        assertThat(jdbcTemplate.queryForObject("SELECT STATUS FROM FRIENDS WHERE USER_ID = ? AND FRIEND_ID = ?",
+                Boolean.class, thirdUser.getId(), firstUser.getId())).isFalse();
+        assertThat(userService.getCommonFriends(firstUser.getId(), secondUser.getId())).isEmpty();
+
+        userService.addFriend(firstUser.getId(), secondUser.getId());
+        userStorage.deleteUser(thirdUser.getId());
+        assertThat(userService.getUserFriendsById(secondUser.getId())).isEmpty();
+        assertThat(userStorage.getFollowerIds(secondUser.getId())).containsExactly(firstUser.getId());
+        assertThat(userStorage.getUserFriendsById(firstUser.getId())).extracting(User::getName)
+                .containsExactly("Новое имя");
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void testConcurrentReciprocalFriendRequests() throws Exception {
+        List<Long> userIds = createUsers("friend", 16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            // каждая пара пользователей одновременно отправляет друг другу заявки, некоторые по два раза
+            List<Callable<Void>> requests = new ArrayList<>();
+            for (int i = 0; i < userIds.size(); i++) {
+                for (int j = i + 1; j < userIds.size(); j++) {
+                    CyclicBarrier bothSides = new CyclicBarrier(2);
+                    requests.add(friendRequest(bothSides, userIds.get(i), userIds.get(j)));
+                    requests.add(friendRequest(bothSides, userIds.get(j), userIds.get(i)));
+                }
+            }
+            for (Future<Void> future : executor.invokeAll(requests)) {
+                future.get();
+            }
+            String pairs = "SELECT COUNT(*) FROM FRIENDS WHERE USER_ID IN (:ids) AND STATUS = :status";
+            assertThat(namedParameterJdbcTemplate.queryForObject(pairs,
+                    Map.of("ids", userIds, "status", true), Integer.class)).isEqualTo(requests.size());
+
+            // первый пользователь и все остальные одновременно удаляют друг друга из друзей
+            Long first = userIds.get(0);
+            List<Callable<Void>> removals = new ArrayList<>();
+            for (Long other : userIds.subList(1, userIds.size())) {
+                removals.add(() -> {
+                    userService.removeFriend(first, other);
+                    return null;
+                });
+                removals.add(() -> {
+                    userService.removeFriend(other, first);
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(removals)) {
+                future.get();
+            }
+            assertThat(namedParameterJdbcTemplate.queryForObject(pairs,
+                    Map.of("ids", userIds, "status", false), Integer.class)).isZero();
+            assertThat(namedParameterJdbcTemplate.queryForObject(pairs,
+                    Map.of("ids", userIds, "status", true), Integer.class))
+                    .isEqualTo(requests.size() - removals.size());
+            assertThat(userStorage.getFriendIds(first)).isEmpty();
+            assertThat(userStorage.getCommonFriends(userIds.get(1), userIds.get(2)))
+                    .hasSize(userIds.size() - 3);
+        } finally {
+            executor.shutdown();
+            bufferedFeedStorage.flush();
+            userIds.forEach(userStorage::deleteUser);
+        }
+    }
+
+    private Callable<Void> friendRequest(CyclicBarrier bothSides, Long userId, Long friendId) {
+        return () -> {
+            bothSides.await(10, TimeUnit.SECONDS);
+            userService.addFriend(userId, friendId);
+            if (userId % 3 == 0) {
+                userService.addFriend(userId, friendId);
+            }
+            return null;
+        };
+    }
+
+    @Test
+    public void testStorageQueriesUseIndexes() throws SQLException {
+        List<String> statements;
+        setQueryStatistics(true);
+        try {
+            runPointAndRangeQueries();
+            statements = jdbcTemplate.queryForList(
+                    "SELECT SQL_STATEMENT FROM INFORMATION_SCHEMA.QUERY_STATISTICS", String.class);
+        } finally {
+            setQueryStatistics(false);
+        }
+        assertThat(statements).hasSizeGreaterThan(40);
+        List<String> fullScans = new ArrayList<>();
+        for (String sql : statements) {
+            String plan = explain(sql);
+            if (plan != null && hasFullScan(plan, sql) && FULL_SCAN_ALLOWED.stream().noneMatch(sql::contains)) {
+                fullScans.add(sql + "\n" + plan);
+            }
+        }
+        assertThat(fullScans).isEmpty();
+    }
+
+    // запросы хранилищ к отдельным записям и диапазонам; чтение таблиц целиком (findAll, фоновые задачи) не вызывается
+    private void runPointAndRangeQueries() {
+        firstUser = userService.createUser(firstUser);
+        secondUser = userService.createUser(secondUser);
+        userService.updateUser(firstUser);
+        userService.addFriend(firstUser.getId(), secondUser.getId());
+        userService.addFriend(secondUser.getId(), firstUser.getId());
+        userService.getUserById(firstUser.getId());
+        userService.getUserFriendsById(firstUser.getId());
+        userService.getCommonFriends(firstUser.getId(), secondUser.getId());
+        userStorage.findPage(firstUser.getId(), 10);
+        userStorage.getFollowerIds(firstUser.getId());
+        userStorage.getPopularFriendIds(firstUser.getId(), 1);
+
+        Director director = directorService.createDirector(new Director(null, "Рязанов"));
+        directorService.updateDirector(director);
+        directorService.getDirectorById(director.getId());
+        firstFilm.setDirectors(new HashSet<>(List.of(director)));
+        firstFilm = filmService.createFilm(firstFilm);
+        secondFilm = filmService.createFilm(secondFilm);
+        filmService.updateFilm(firstFilm);
+        filmService.getFilmById(firstFilm.getId());
+        filmService.addLike(firstFilm.getId(), firstUser.getId());
+        filmService.addLike(firstFilm.getId(), secondUser.getId());
+        filmService.removeLike(firstFilm.getId(), secondUser.getId());
+        filmService.applyLikes(List.of(new LikeOperation(secondFilm.getId(), firstUser.getId(), Operation.ADD)));
+        List<Long> filmIds = List.of(firstFilm.getId(), secondFilm.getId());
+        filmStorage.getFilm(firstFilm.getId());
+        filmStorage.getFilmsByIds(filmIds);
+        filmStorage.getHydratedFilm(firstFilm.getId());
+        filmStorage.getHydratedFilmsByIds(filmIds, LikesView.IDS, firstUser.getId());
+        filmStorage.getHydratedFilmsPage(0L, 10, LikesView.COUNT, firstUser.getId());
+        filmStorage.getLikeMap(filmIds);
+        filmStorage.getTopNPopularFilms(10, null, null);
+        filmStorage.getTopNPopularFilms(10, 1, null);
+        filmStorage.getTopNPopularFilms(10, 1, 1980);
+        filmStorage.getCommonFilms(firstUser.getId(), secondUser.getId());
+        filmStorage.getFilmsByDirector(director.getId());
+        filmStorage.getFilmsDirectorSortByYear(director.getId());
+        filmStorage.getFilmsDirectorSortByLikes(director.getId());
+        filmStorage.searchFilmsByNameOrDirector("зано", List.of("title", "director"));
+
+        Review review = reviewStorage.createReview(new Review(null, "Отзыв", true, firstUser.getId(),
+                firstFilm.getId(), 0L));
+        reviewStorage.updateReview(review);
+        reviewStorage.addLike(review.getReviewId(), secondUser.getId());
+        reviewStorage.removeLike(review.getReviewId(), secondUser.getId());
+        reviewStorage.addDislike(review.getReviewId(), secondUser.getId());
+        reviewStorage.removeDislike(review.getReviewId(), secondUser.getId());
+        reviewStorage.getReview(review.getReviewId());
+        reviewStorage.getTopNReviews(10L);
+        reviewStorage.getTopNReviewsByFilmId(firstFilm.getId(), 10L);
+        reviewStorage.getReviewsPage(null, 0L, review.getReviewId(), 10L);
+        reviewStorage.getReviewsPage(firstFilm.getId(), 0L, review.getReviewId(), 10L);
+        filmStorage.refreshFilmViewByReview(firstFilm.getId());
+        reviewStorage.deleteReview(review.getReviewId());
+
+        bufferedFeedStorage.flush();
+        userService.getFeedByUserId(firstUser.getId());
+        userService.getFeedByUserId(firstUser.getId(), 0L, Instant.EPOCH, Instant.now(), 10);
+        feedStorage.getFeedByUserIds(List.of(firstUser.getId()), Long.MAX_VALUE, 10);
+        feedStorage.archiveFeedBefore(Instant.EPOCH);
+        timelineStorage.getTimeline(firstUser.getId(), Long.MAX_VALUE, 10);
+
+        userService.removeFriend(firstUser.getId(), secondUser.getId());
+        directorService.deleteDirector(director.getId());
+        filmService.deleteFilm(secondFilm.getId());
+        userService.deleteUser(secondUser.getId());
+    }
+
+    // SET фиксирует транзакцию, поэтому выполняется в отдельном соединении, а не в транзакции теста
+    private void setQueryStatistics(boolean enabled) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("SET QUERY_STATISTICS_MAX_ENTRIES 1000");
+            statement.execute("SET QUERY_STATISTICS FALSE"); // выключение очищает накопленную статистику
+            if (enabled) {
+                statement.execute("SET QUERY_STATISTICS TRUE");
+            }
+        }
+    }
+
+    private String explain(String sql) {
+        String command = sql.stripLeading().toUpperCase(Locale.ROOT);
+        if (!command.startsWith("SELECT") && !command.startsWith("UPDATE") && !command.startsWith("DELETE")
+                && !command.startsWith("MERGE")) {
+            return null;
+        }
+        return jdbcTemplate.execute((ConnectionCallback<String>) connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("EXPLAIN " + sql)) {
+                int parameters = statement.getParameterMetaData().getParameterCount();
+                for (int i = 1; i <= parameters; i++) {
+                    statement.setObject(i, null);
+                }
+                try (ResultSet rs = statement.executeQuery()) {
+                    rs.next();
+                    return rs.getString(1);
+                }
+            }
+        });
+    }
+
+    // в плане H2 у каждой таблицы комментарий с индексом и условием: /* PUBLIC.IDX: FILM_ID = ?1 */.
+    // Без условия это полный просмотр таблицы или индекса; обход индекса по порядку допустим только с LIMIT
+    private static boolean hasFullScan(String plan, String sql) {
+        Matcher access = Pattern.compile("/\\* (PUBLIC\\.[^:*]+?) \\*/").matcher(plan);
+        boolean limited = sql.toUpperCase(Locale.ROOT).contains("LIMIT");
+        while (access.find()) {
+            if (access.group(1).endsWith(".tableScan") || !limited || !plan.contains("index sorted")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // mvn test -Dtest=FilmorateApplicationTests#benchmarkLikeAndFullTextSearch -Dfilmorate.benchmark=true
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void benchmarkLikeAndFullTextSearch() {
+        filmStorage.initFullTextSearch();
+        int films = 100_000;
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < films; i++) {
+            rows.add(new Object[]{"Фильм " + i + " слово" + i % 1000, DESCRIPTION, TEST_DATE, 100, 1});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO FILMS (FILM_NAME, DESCRIPTION, RELEASE_DATE, DURATION, RATING_ID) " +
+                "VALUES (?, ?, ?, ?, ?)", rows);
+        int runs = 20;
+        long likeStart = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            assertThat(filmStorage.searchFilmsByNameOrDirector("слово" + (500 + i), List.of("title")))
+                    .hasSize(films / 1000);
+        }
+        long likeMs = (System.nanoTime() - likeStart) / 1_000_000 / runs;
+        long fullTextStart = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            assertThat(filmStorage.searchFilmIdsByFullText("слово" + (500 + i), List.of("title")))
+                    .hasSize(films / 1000);
+        }
+        long fullTextMs = (System.nanoTime() - fullTextStart) / 1_000_000 / runs;
+        System.out.printf("Поиск среди %d фильмов: LIKE %d мс, полнотекстовый %d мс на запрос%n",
+                films, likeMs, fullTextMs);
+    }
+
+    // mvn test -Dtest=FilmorateApplicationTests#benchmarkSuggestLatency -Dfilmorate.benchmark=true
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void benchmarkSuggestLatency() {
+        int films = 200_000;
+        String[] syllables = {"ка", "ро", "ми", "ла", "те", "зо", "ну", "по", "ве", "ся", "да", "го"};
+        Random random = new Random(7);
+        FilmSuggestIndex index = new FilmSuggestIndex(filmStorage, 20, 64);
+        // прежний способ для сравнения: диапазон отсортированной карты и отбор кучей
+        NavigableMap<String, Film> sorted = new TreeMap<>();
+        long buildStart = System.nanoTime();
+        for (long id = 1; id <= films; id++) {
+            StringBuilder name = new StringBuilder();
+            for (int i = random.nextInt(4) + 2; i > 0; i--) {
+                name.append(syllables[random.nextInt(syllables.length)]);
+            }
+            Film film = suggestFilm(id, name.append(' ').append(id).toString(), random.nextInt(1000));
+            index.putFilm(film);
+            sorted.put(film.getName() + '\0' + id, film);
+        }
+        System.out.printf("Названий: %d, индекс построен за %d мс%n", films,
+                (System.nanoTime() - buildStart) / 1_000_000);
+
+        List<String> names = new ArrayList<>(sorted.keySet());
+        for (int length = 1; length <= 4; length++) {
+            List<String> prefixes = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                prefixes.add(names.get(random.nextInt(names.size())).substring(0, length));
+            }
+            for (String prefix : prefixes.subList(0, 20)) {
+                assertThat(index.suggest(prefix, 10)).extracting(Suggestion::getLikesCount)
+                        .isEqualTo(scanSuggest(sorted, prefix, 10));
+            }
+            long[] trie = suggestLatencies(prefixes, prefix -> index.suggest(prefix, 10));
+            long[] scan = suggestLatencies(prefixes, prefix -> scanSuggest(sorted, prefix, 10));
+            System.out.printf("Префикс %d: дерево среднее %.1f мкс, p99 %.1f мкс; диапазон среднее %.1f мкс, " +
+                            "p99 %.1f мкс%n", length, average(trie) / 1000.0, trie[trie.length * 99 / 100] / 1000.0,
+                    average(scan) / 1000.0, scan[scan.length * 99 / 100] / 1000.0);
+        }
+
+        int changes = 100_000;
+        long changeStart = System.nanoTime();
+        for (int i = 0; i < changes; i++) {
+            index.changeLikes((long) random.nextInt(films) + 1, random.nextBoolean() ? 1 : -1);
+        }
+        System.out.printf("Изменение лайков: %.2f мкс%n", (System.nanoTime() - changeStart) / 1000.0 / changes);
+    }
+
+    // время каждого запроса по возрастанию, в наносекундах
+    private static long[] suggestLatencies(List<String> prefixes, Consumer<String> suggest) {
+        for (String prefix : prefixes) { // прогрев
+            suggest.accept(prefix);
+        }
+        long[] latencies = new long[prefixes.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            long start = System.nanoTime();
+            suggest.accept(prefixes.get(i));
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static double average(long[] values) {
+        return Arrays.stream(values).average().orElse(0);
+    }
+
+    private static List<Long> scanSuggest(NavigableMap<String, Film> sorted, String prefix, int count) {
+        PriorityQueue<Long> top = new PriorityQueue<>(count + 1);
+        for (Film film : sorted.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            top.add(film.getLikesCount());
+            if (top.size() > count) {
+                top.poll();
+            }
+        }
+        List<Long> likes = new ArrayList<>(top);
+        likes.sort(Comparator.reverseOrder());
+        return likes;
+    }
+
+    // mvn test -Dtest=FilmorateApplicationTests#benchmarkConcurrentLikeWriters -Dfilmorate.benchmark=true
+    // Сравнивает тестовую базу в памяти с файловой базой, пулом и настройками H2 из application-prod.properties.
+    // Меряется только запись лайка в базу (FilmDbStorage.addLike в транзакции): индексы в памяти и лента не участвуют.
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void benchmarkConcurrentLikeWriters() throws Exception {
+        printLikeThroughput("прогрев", dataSource); // чтобы первой базе не достался прогрев JIT
+        printLikeThroughput("тестовая база", dataSource);
+        Properties prod = PropertiesLoaderUtils.loadProperties(new ClassPathResource("application-prod.properties"));
+        Path directory = Files.createTempDirectory("filmorate-prod");
+        HikariDataSource prodDataSource = new HikariDataSource();
+        new Binder(new MapConfigurationPropertySource(prod))
+                .bind("spring.datasource.hikari", Bindable.ofInstance(prodDataSource));
+        prodDataSource.setJdbcUrl(prod.getProperty("spring.datasource.url")
+                .replace("./db/", directory.toAbsolutePath() + "/"));
+        try {
+            new ResourceDatabasePopulator(new ClassPathResource("schema.sql"), new ClassPathResource("data.sql"))
+                    .execute(prodDataSource);
+            printLikeThroughput("prod", prodDataSource);
+        } finally {
+            prodDataSource.close();
+            FileSystemUtils.deleteRecursively(directory);
+        }
+    }
+
+    // 2048 лайков от 1, 2, ... 64 писателей; у каждого писателя свой пользователь, пары (фильм, пользователь) не повторяются
+    private void printLikeThroughput(String name, DataSource target) throws Exception {
+        JdbcTemplate targetJdbc = new JdbcTemplate(target);
+        NamedParameterJdbcTemplate targetNamedJdbc = new NamedParameterJdbcTemplate(target);
+        FilmDbStorage films = new FilmDbStorage(targetJdbc, targetNamedJdbc, true);
+        UserDbStorage users = new UserDbStorage(targetJdbc, targetNamedJdbc, new NoOpCacheManager());
+        TransactionTemplate transaction = new TransactionTemplate(new DataSourceTransactionManager(target));
+        int likesPerLevel = 2048;
+        List<Long> userIds = createUsers(users, "load", 64);
+        List<Long> filmIds = new ArrayList<>();
+        try {
+            for (int writers = 1; writers <= 64; writers *= 2) {
+                int likesPerWriter = likesPerLevel / writers;
+                List<Long> levelFilms = new ArrayList<>();
+                for (int i = 0; i < likesPerWriter; i++) {
+                    levelFilms.add(films.createFilm(newFilm("Нагрузка " + writers + "-" + i)).getId());
+                }
+                filmIds.addAll(levelFilms);
+                ExecutorService executor = Executors.newFixedThreadPool(writers);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int w = 0; w < writers; w++) {
+                    Long userId = userIds.get(w);
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        for (Long filmId : levelFilms) {
+                            transaction.execute(status -> films.addLike(filmId, userId));
+                        }
+                        return null;
+                    }));
+                }
+                long startNanos = System.nanoTime();
+                start.countDown();
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                long elapsedMs = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
+                executor.shutdown();
+                System.out.printf("%s (%s), писателей: %d, лайков: %d, %d мс, %d лайков/с%n", name,
+                        target.getClass().getSimpleName(), writers, likesPerLevel, elapsedMs,
+                        likesPerLevel * 1000L / elapsedMs);
+            }
+            assertThat(targetJdbc.queryForObject("SELECT LIKES_COUNT FROM FILMS WHERE FILM_ID = ?", Long.class,
+                    filmIds.get(filmIds.size() - 1))).isEqualTo(64);
+        } finally {
+            if (!filmIds.isEmpty()) {
+                targetNamedJdbc.update("DELETE FROM FILMS WHERE FILM_ID IN (:ids)", Map.of("ids", filmIds));
+            }
+            targetNamedJdbc.update("DELETE FROM USERS WHERE USER_ID IN (:ids)", Map.of("ids", userIds));
+        }
+    }
+
+    // mvn test -Dtest=FilmorateApplicationTests#benchmarkFilmHydration -Dfilmorate.benchmark=true
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void benchmarkFilmHydration() throws SQLException {
+        int filmCount = 2000;
+        List<Long> userIds = createUsers("hydration", 20);
+        List<Director> directors = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            directors.add(directorService.createDirector(new Director(null, "Режиссёр " + i)));
+        }
+        for (int i = 0; i < filmCount; i++) {
+            Film film = newFilm("Гидратация " + i);
+            film.setGenres(new HashSet<>(List.of(new Genre(i % 6 + 1, null), new Genre((i + 2) % 6 + 1, null))));
+            film.setDirectors(new HashSet<>(List.of(directors.get(i % directors.size()))));
+            Long filmId = filmService.createFilm(film).getId();
+            for (int u = 0; u < 5; u++) {
+                filmService.addLike(filmId, userIds.get((i + u) % userIds.size()));
+            }
+        }
+        // тот же сервис, но фильмы дополняются жанрами, режиссёрами и лайками отдельными запросами
+        FilmService multiQuery = new FilmService(filmStorage, userStorage, genreStorage, directorStorage,
+                bufferedFeedStorage, popularFilms, recommendationEngine, searchIndex, suggestIndex,
+                true, "index", Set.of("all", "popular"), 10_000);
+
+        for (int i = 0; i < 3; i++) { // прогрев
+            filmService.findAll();
+            multiQuery.findAll();
+        }
+        System.out.printf("Фильмов: %d%n", filmCount);
+        printHydration("findAllHydrated", () -> filmService.findAll());
+        printHydration("findAll + 3 запроса", () -> multiQuery.findAll());
+        printHydration("getHydratedFilmsByIds, 100", () -> filmService.getTopNPopularFilms(100, null, null));
+        printHydration("getFilmsByIds + 3 запроса, 100", () -> multiQuery.getTopNPopularFilms(100, null, null));
+        assertThat(filmService.getTopNPopularFilms(100, null, null))
+                .isEqualTo(multiQuery.getTopNPopularFilms(100, null, null));
+    }
+
+    // среднее за 10 вызовов: запросов к базе, время и байт выделено в потоке теста
+    private void printHydration(String name, Runnable load) throws SQLException {
+        int runs = 10;
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long queries;
+        long elapsedNanos;
+        long allocated;
+        setQueryStatistics(true);
+        try {
+            long startBytes = threads.getThreadAllocatedBytes(threadId);
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                load.run();
+            }
+            elapsedNanos = System.nanoTime() - startNanos;
+            allocated = threads.getThreadAllocatedBytes(threadId) - startBytes;
+            queries = jdbcTemplate.queryForObject(
+                    "SELECT SUM(EXECUTION_COUNT) FROM INFORMATION_SCHEMA.QUERY_STATISTICS", Long.class);
+        } finally {
+            setQueryStatistics(false);
+        }
+        System.out.printf("%s: запросов %d, %.1f мс, %d КБ%n", name, queries / runs,
+                elapsedNanos / 1_000_000.0 / runs, allocated / 1024 / runs);
+    }
+
+    // mvn test -Dtest=FilmorateApplicationTests#benchmarkReviewVotesBatch -Dfilmorate.benchmark=true
+    @Test
+    @EnabledIfSystemProperty(named = "filmorate.benchmark", matches = "true")
+    public void benchmarkReviewVotesBatch() {
+        firstFilm = filmService.createFilm(firstFilm);
+        List<Long> userIds = createUsers("voter", 100);
+        List<Long> reviewIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            reviewIds.add(reviewService.createReview(new Review(null, "Отзыв " + i, true, userIds.get(i),
+                    firstFilm.getId(), null)).getReviewId());
+        }
+        List<ReviewVote> votes = new ArrayList<>();
+        for (Long reviewId : reviewIds) {
+            for (Long userId : userIds) {
+                votes.add(new ReviewVote(reviewId, userId, (reviewId + userId) % 2 == 0 ? 1 : -1));
+            }
+        }
+
+        long start = System.nanoTime();
+        for (ReviewVote vote : votes.subList(0, votes.size() / 2)) {
+            if (vote.getRating() > 0) {
+                reviewService.addLike(vote.getReviewId(), vote.getUserId());
+            } else {
+                reviewService.addDislike(vote.getReviewId(), vote.getUserId());
+            }
+        }
+        long singleMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        start = System.nanoTime();
+        reviewService.applyVotes(votes.subList(votes.size() / 2, votes.size()));
+        long batchMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        int half = votes.size() / 2;
+        System.out.printf("Оценок: %d. По одной: %d мс, %d оценок/с. Пакетом: %d мс, %d оценок/с%n",
+                half, singleMs, half * 1000L / singleMs, batchMs, half * 1000L / batchMs);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM REVIEWS AS R WHERE R.USEFUL <> " +
+                "(SELECT COALESCE(SUM(LIKE_RATING), 0) FROM REVIEW_LIKES AS RL WHERE RL.REVIEW_ID = R.REVIEW_ID)",
+                Integer.class)).isZero();
+    }
+}